@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and formatting of stored verified IP entries in the current and legacy formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpAuthorizationEntryBenchmark {
+
+    @Param({ "192.168.1.10;1893456000;1577836800", "2001:db8::/32;1893456000", "10.0.0.1;2030-01-01T00:00:00" })
+    public String text;
+
+    private IpAuthorizationEntry entry;
+
+    @Setup
+    public void setup() {
+        this.entry = IpAuthorizationEntry.parse(this.text);
+    }
+
+    @Benchmark
+    public IpAuthorizationEntry parse() {
+        return IpAuthorizationEntry.parse(this.text);
+    }
+
+    @Benchmark
+    public String format() {
+        return this.entry.format();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Verified IP check of a login for users with a growing number of verified entries, through the user attribute store
+ * and its compiled entry cache. The matched address is the last entry of the user, or not verified at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TryAuthorizeBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int entries;
+
+    @Param({ "true", "false" })
+    public boolean verified;
+
+    private AuthenticationFlowContext context;
+
+    private ClientIp ip;
+
+    @Setup
+    public void setup() {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        List<String> values = new ArrayList<>(this.entries);
+        for (int i = 0; i < this.entries; i++) {
+            values.add("10." + (i >> 8 & 0xff) + "." + (i & 0xff) + ".1;" + (now + 86400) + ";" + now);
+        }
+        List<String> attribute = Collections.unmodifiableList(values);
+        String last = values.get(this.entries - 1);
+        String address = this.verified ? last.substring(0, last.indexOf(';')) : "192.168.1.1";
+        this.ip = new ClientIp(address);
+
+        RealmModel realm = stub(RealmModel.class, Collections.singletonMap("getId", "realm"));
+        UserModel user = stub(UserModel.class, map("getId", "user", "getUsername", "user", "getAttribute", attribute));
+        KeycloakSession session = stub(KeycloakSession.class,
+                Collections.singletonMap("getProvider", new UserAttributeVerifiedIpStore(null)));
+        this.context = stub(AuthenticationFlowContext.class,
+                map("getSession", session, "getRealm", realm, "getUser", user));
+    }
+
+    @Benchmark
+    public boolean tryAuthorize() {
+        return IpAuthenticatorUtil.tryAuthorize(this.context, this.ip);
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Implements an interface by returning a fixed value per method name, and null, false or 0 for other methods.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Object> returns) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            Object value = returns.get(method.getName());
+            if (value != null || !method.getReturnType().isPrimitive()) {
+                return value;
+            }
+            if (method.getReturnType() == boolean.class) {
+                return false;
+            }
+            if (method.getReturnType() == void.class) {
+                return null;
+            }
+            return method.getReturnType() == long.class ? (Object) 0L : (Object) 0;
+        });
+    }
+}
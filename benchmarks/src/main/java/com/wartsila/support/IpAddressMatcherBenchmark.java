@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching of a client address against a single verified address or range, both from text as when an entry is
+ * checked directly and from a parsed address as when the client address is resolved once per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpAddressMatcherBenchmark {
+
+    @Param({ "ipv4-exact", "ipv4-cidr", "ipv6-exact", "ipv6-cidr" })
+    public String kind;
+
+    private IpAddressMatcher matcher;
+
+    private String text;
+
+    private IpAddress address;
+
+    @Setup
+    public void setup() {
+        switch (this.kind) {
+        case "ipv4-exact":
+            this.matcher = new IpAddressMatcher("192.168.1.10");
+            this.text = "192.168.1.10";
+            break;
+        case "ipv4-cidr":
+            this.matcher = new IpAddressMatcher("10.0.0.0/8");
+            this.text = "10.20.30.40";
+            break;
+        case "ipv6-exact":
+            this.matcher = new IpAddressMatcher("2001:db8::8a2e:370:7334");
+            this.text = "2001:db8::8a2e:370:7334";
+            break;
+        case "ipv6-cidr":
+            this.matcher = new IpAddressMatcher("2001:db8::/32");
+            this.text = "2001:db8:85a3::8a2e:370:7334";
+            break;
+        default:
+            throw new IllegalArgumentException(this.kind);
+        }
+        this.address = IpAddress.parse(this.text);
+    }
+
+    @Benchmark
+    public boolean matchesText() {
+        return this.matcher.matches(this.text);
+    }
+
+    @Benchmark
+    public boolean matchesAddress() {
+        return this.matcher.matches(this.address);
+    }
+}
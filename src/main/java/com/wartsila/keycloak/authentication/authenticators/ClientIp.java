@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import com.wartsila.support.IpAddress;
+
+/**
+ * Client IP address of the current request, resolved once per set of trusted proxies by {@link IpUtil#resolve} and
+ * kept in the session for the rest of the request together with the parsed address.
+ */
+public final class ClientIp {
+
+    private final String text;
+
+    private final IpAddress address;
+
+    private final String remoteAddress;
+
+    private final boolean clientSupplied;
+
+    ClientIp(String text) {
+        this(text, text, false);
+    }
+
+    /**
+     * @param text client IP address
+     * @param remoteAddress address of the connection
+     * @param clientSupplied true if text was taken from a header that no trusted proxy vouched for
+     */
+    ClientIp(String text, String remoteAddress, boolean clientSupplied) {
+        this.text = text;
+        this.address = text == null ? null : IpAddress.tryParse(text);
+        this.remoteAddress = remoteAddress;
+        this.clientSupplied = clientSupplied;
+    }
+
+    /**
+     * @return address as received, may be null
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * @return parsed address, null if the address could not be parsed
+     */
+    public IpAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return address of the connection, the client itself or the nearest proxy
+     */
+    public String getRemoteAddress() {
+        return this.remoteAddress;
+    }
+
+    /**
+     * @return true if the address was taken from X-Forwarded-For without trusted proxies, so the client may have
+     *         chosen it
+     */
+    public boolean isClientSupplied() {
+        return this.clientSupplied;
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Action verification nonces of {@link IpAuthorizeActionToken}s that have already been used, kept until the tokens
+ * expire. Consumed nonces are broadcast to all cluster nodes so that repeated clicks of the emailed link, and link
+ * prefetching by mail scanners, do not add the same verified IP entry again.
+ */
+public final class ConsumedActionTokens {
+
+    public static final String CLUSTER_TASK_KEY = "ip-authenticator-consumed-action-token";
+
+    private static final int CLEANUP_THRESHOLD = 1024;
+
+    private static final Logger logger = Logger.getLogger(ConsumedActionTokens.class);
+
+    private static final ConcurrentMap<String, Integer> consumed = new ConcurrentHashMap<>();
+
+    private static volatile int nextCleanup = CLEANUP_THRESHOLD;
+
+    private ConsumedActionTokens() {
+        // utility
+    }
+
+    /**
+     * Starts receiving consumed tokens from the other cluster nodes.
+     *
+     * @param session session
+     */
+    static void register(KeycloakSession session) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            logger.info("No cluster provider, consumed IP verification tokens are not shared between nodes");
+            return;
+        }
+        cluster.registerListener(CLUSTER_TASK_KEY, event -> {
+            if (event instanceof Consumed) {
+                Consumed token = (Consumed) event;
+                add(token.getNonce(), token.getExpiresAt());
+            }
+        });
+    }
+
+    /**
+     * @param token token
+     * @return true if token has already been consumed on any node
+     */
+    public static boolean isConsumed(IpAuthorizeActionToken token) {
+        Integer expiresAt = consumed.get(nonce(token));
+        return expiresAt != null && expiresAt > Time.currentTime();
+    }
+
+    /**
+     * Marks token consumed on this node, unless another thread already did.
+     *
+     * @param token token
+     * @return true if the caller should process the token
+     */
+    public static boolean claim(IpAuthorizeActionToken token) {
+        return add(nonce(token), token.getExpiration()) == null;
+    }
+
+    /**
+     * Undoes {@link #claim(IpAuthorizeActionToken)} when processing the token failed.
+     *
+     * @param token token
+     */
+    public static void release(IpAuthorizeActionToken token) {
+        consumed.remove(nonce(token));
+    }
+
+    /**
+     * Broadcasts a claimed token to the other cluster nodes.
+     *
+     * @param session session
+     * @param token token claimed with {@link #claim(IpAuthorizeActionToken)}
+     */
+    public static void publish(KeycloakSession session, IpAuthorizeActionToken token) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.notify(CLUSTER_TASK_KEY, new Consumed(nonce(token), token.getExpiration()), true);
+        }
+    }
+
+    private static String nonce(IpAuthorizeActionToken token) {
+        return token.getActionVerificationNonce().toString();
+    }
+
+    private static Integer add(String nonce, int expiresAt) {
+        Integer previous = consumed.putIfAbsent(nonce, expiresAt);
+        if (consumed.size() > nextCleanup) {
+            int now = Time.currentTime();
+            for (Iterator<Map.Entry<String, Integer>> i = consumed.entrySet().iterator(); i.hasNext();) {
+                if (i.next().getValue() <= now) {
+                    i.remove();
+                }
+            }
+            nextCleanup = Math.max(CLEANUP_THRESHOLD, consumed.size() * 2);
+        }
+        return previous;
+    }
+
+    /**
+     * Consumed token sent to the other cluster nodes.
+     */
+    public static final class Consumed implements ClusterEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String nonce;
+
+        private final int expiresAt;
+
+        /**
+         * @param nonce action verification nonce of the token
+         * @param expiresAt epoch second when the token expires
+         */
+        public Consumed(String nonce, int expiresAt) {
+            this.nonce = nonce;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getNonce() {
+            return this.nonce;
+        }
+
+        public int getExpiresAt() {
+            return this.expiresAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Consumed [nonce=" + this.nonce + ", expiresAt=" + this.expiresAt + "]";
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local cache of positive direct grant decisions, keyed by realm, user, client and client IP address. A cached
+ * decision is valid for a short time, at most until the matched verified IP entry expires, and only with the same
+ * compiled {@link IpAuthenticatorConfig}, so a configuration change invalidates it. Decisions of a user are dropped
+ * whenever the verified IP entries of the user are written. With {@link JpaVerifiedIpStore}, a write on any node sends
+ * a {@link VerifiedIpAddresses.Invalidation} event that calls {@link #invalidate(String, String)} on every node;
+ * {@link UserAttributeVerifiedIpStore} only invalidates on the node that wrote. Role, group and client mode changes
+ * are not tracked: after a change to the role mappings or groups of the user, or to the client roles that select the
+ * mode, a cached SKIP or ATTEMPTED decision stays in use until it expires after the TTL.
+ * <p>
+ * A hit does not update the last matched time of the verified IP entry. The first login after a decision expires
+ * matches again and updates it, so the time is refreshed at most once per TTL. The TTL is capped at
+ * {@link VerifiedIpAddresses#LAST_MATCHED_UPDATE_INTERVAL_SECONDS} so that an entry in constant use is never the least
+ * recently matched one when entries are evicted.
+ */
+final class DirectGrantDecisions {
+
+    public static final int DEFAULT_MAX_USERS = 10000;
+
+    public static final long DEFAULT_TTL_SECONDS = 60;
+
+    private static final int MAX_DECISIONS_PER_USER = 32;
+
+    private static volatile DirectGrantDecisions instance = new DirectGrantDecisions(DEFAULT_MAX_USERS,
+            DEFAULT_TTL_SECONDS);
+
+    private final int maxUsers;
+
+    private final long ttlMillis;
+
+    private final Map<String, Map<String, Decision>> users;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private DirectGrantDecisions(int maxUsers, long ttlSeconds) {
+        this.maxUsers = maxUsers;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.users = new LinkedHashMap<String, Map<String, Decision>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Decision>> eldest) {
+                return size() > DirectGrantDecisions.this.maxUsers;
+            }
+        };
+    }
+
+    /**
+     * Replaces the cache.
+     *
+     * @param maxUsers maximum number of users to keep decisions for
+     * @param ttlSeconds how long a decision is reused, 0 or less to disable caching, at most
+     *        {@link VerifiedIpAddresses#LAST_MATCHED_UPDATE_INTERVAL_SECONDS}
+     */
+    static void configure(int maxUsers, long ttlSeconds) {
+        instance = new DirectGrantDecisions(maxUsers,
+                Math.min(ttlSeconds, VerifiedIpAddresses.LAST_MATCHED_UPDATE_INTERVAL_SECONDS));
+    }
+
+    static DirectGrantDecisions get() {
+        return instance;
+    }
+
+    /**
+     * Returns the cached decision for a login.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @param clientId client id
+     * @param ip client IP address
+     * @param config compiled configuration of the current execution
+     * @return {@link ConditionalActionMode#SKIP} for success, {@link ConditionalActionMode#ATTEMPTED} for attempted,
+     *         or null if there is no valid decision
+     */
+    ConditionalActionMode get(String realmId, String userId, String clientId, ClientIp ip,
+            IpAuthenticatorConfig config) {
+        if (this.ttlMillis <= 0) {
+            return null;
+        }
+        Decision decision;
+        synchronized (this.users) {
+            Map<String, Decision> decisions = this.users.get(userKey(realmId, userId));
+            decision = decisions == null ? null : decisions.get(loginKey(clientId, ip));
+        }
+        if (decision != null && decision.config == config && decision.expiresAt > System.currentTimeMillis()) {
+            this.hits.increment();
+            return decision.outcome;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a positive decision for a login.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @param clientId client id
+     * @param ip client IP address
+     * @param config compiled configuration the decision was made with
+     * @param outcome {@link ConditionalActionMode#SKIP} for success, {@link ConditionalActionMode#ATTEMPTED} for
+     *        attempted
+     * @param validUntil epoch second until which the decision holds
+     */
+    void put(String realmId, String userId, String clientId, ClientIp ip, IpAuthenticatorConfig config,
+            ConditionalActionMode outcome, long validUntil) {
+        if (this.ttlMillis <= 0) {
+            return;
+        }
+        long expiresAt = Math.min(System.currentTimeMillis() + this.ttlMillis,
+                validUntil >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(validUntil));
+        Decision decision = new Decision(config, outcome, expiresAt);
+        synchronized (this.users) {
+            Map<String, Decision> decisions = this.users.computeIfAbsent(userKey(realmId, userId),
+                    k -> new HashMap<>());
+            if (decisions.size() >= MAX_DECISIONS_PER_USER) {
+                decisions.clear();
+            }
+            decisions.put(loginKey(clientId, ip), decision);
+        }
+    }
+
+    /**
+     * Drops the decisions of a user. Called whenever verified IP entries of the user are written on this node.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     */
+    void invalidate(String realmId, String userId) {
+        synchronized (this.users) {
+            this.users.remove(userKey(realmId, userId));
+        }
+    }
+
+    private static String userKey(String realmId, String userId) {
+        return realmId + '/' + userId;
+    }
+
+    private static String loginKey(String clientId, ClientIp ip) {
+        return clientId + '/' + ip.getText();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (this.users) {
+            size = this.users.size();
+        }
+        return String.format("DirectGrantDecisions[users=%d, maxUsers=%d, ttlMillis=%d, hits=%d, misses=%d]", size,
+                this.maxUsers, this.ttlMillis, this.hits.sum(), this.misses.sum());
+    }
+
+    private static final class Decision {
+
+        private final IpAuthenticatorConfig config;
+
+        private final ConditionalActionMode outcome;
+
+        private final long expiresAt;
+
+        Decision(IpAuthenticatorConfig config, ConditionalActionMode outcome, long expiresAt) {
+            this.config = config;
+            this.outcome = outcome;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+
+import com.wartsila.support.DecayingCounters;
+
+/**
+ * Node-local direct grant failure counts per client IP address. Counts halve every half-life, and an address whose
+ * count has reached the threshold is rejected early until its count has decayed below it again. Rejections are not
+ * counted, so an address is blocked for about one half-life after its last failure.
+ * <p>
+ * Without trusted proxies the X-Forwarded-For address is chosen by the client, and a client could spread its failures
+ * over made-up addresses. Failures are then counted against the address of the connection instead, which behind a
+ * reverse proxy is shared by all clients of the proxy.
+ */
+final class DirectGrantFailures {
+
+    public static final int DEFAULT_THRESHOLD = 20;
+
+    public static final long DEFAULT_HALF_LIFE_SECONDS = 5 * 60;
+
+    public static final int DEFAULT_STRIPES = 4096;
+
+    private static final Logger logger = Logger.getLogger(DirectGrantFailures.class);
+
+    private static volatile DirectGrantFailures instance = new DirectGrantFailures(DEFAULT_THRESHOLD,
+            DEFAULT_HALF_LIFE_SECONDS, DEFAULT_STRIPES);
+
+    private final int threshold;
+
+    private final DecayingCounters counters;
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder blocks = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private long loggedFailures;
+
+    private long loggedRejections;
+
+    private DirectGrantFailures(int threshold, long halfLifeSeconds, int stripes) {
+        this.threshold = threshold;
+        this.counters = threshold > 0
+                ? new DecayingCounters(stripes, TimeUnit.SECONDS.toMillis(Math.max(halfLifeSeconds, 1)))
+                : null;
+    }
+
+    /**
+     * Replaces the counters.
+     *
+     * @param threshold failures after which an address is blocked, 0 or less to disable blocking
+     * @param halfLifeSeconds time for a failure count to halve
+     * @param stripes number of buckets per row of counters
+     */
+    static void configure(int threshold, long halfLifeSeconds, int stripes) {
+        instance = new DirectGrantFailures(threshold, halfLifeSeconds, stripes);
+    }
+
+    static DirectGrantFailures get() {
+        return instance;
+    }
+
+    /**
+     * Checks if the address is blocked, counting a rejection if it is.
+     *
+     * @param ip client IP address
+     * @return true if the address has failed too often recently
+     */
+    boolean isBlocked(ClientIp ip) {
+        if (this.counters == null || this.counters.get(key(ip)) < this.threshold) {
+            return false;
+        }
+        this.rejections.increment();
+        return true;
+    }
+
+    /**
+     * Records a failed direct grant from the address.
+     *
+     * @param ip client IP address
+     */
+    void failed(ClientIp ip) {
+        this.failures.increment();
+        String key = key(ip);
+        if (this.counters != null && this.counters.increment(key) == this.threshold) {
+            this.blocks.increment();
+            logger.warnf("Temporarily blocking direct grant IP verification for %s after repeated failures, %s", key,
+                    this);
+        }
+    }
+
+    private static String key(ClientIp ip) {
+        return ip.isClientSupplied() ? ip.getRemoteAddress() : ip.getText();
+    }
+
+    /**
+     * Logs the counts and the direct grant decision cache statistics if there were failures or rejections since the
+     * previous call. Called periodically by {@link IpAuthenticatorFactory}.
+     */
+    synchronized void logStatistics() {
+        long failureCount = getFailureCount();
+        long rejectionCount = getRejectionCount();
+        if (failureCount != this.loggedFailures || rejectionCount != this.loggedRejections) {
+            logger.infof("%s, %s", this, DirectGrantDecisions.get());
+            this.loggedFailures = failureCount;
+            this.loggedRejections = rejectionCount;
+        }
+    }
+
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    public long getBlockCount() {
+        return this.blocks.sum();
+    }
+
+    public long getRejectionCount() {
+        return this.rejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DirectGrantFailures[threshold=%d, failures=%d, blocks=%d, rejections=%d]",
+                this.threshold, getFailureCount(), getBlockCount(), getRejectionCount());
+    }
+}
@@ -30,13 +30,18 @@ import java.util.stream.Stream;
 import javax.ws.rs.core.Response;
 
 import org.jboss.logging.Logger;
+import org.keycloak.Config.Scope;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.authenticators.directgrant.AbstractDirectGrantAuthenticator;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 
 public class DirectGrantIpAuthenticator extends AbstractDirectGrantAuthenticator {
@@ -47,18 +52,104 @@ public class DirectGrantIpAuthenticator extends AbstractDirectGrantAuthenticator
 
     public static final String IP_VERIFICATION_MISSING = "verified_ip_missing_or_expired";
 
+    public static final String IP_TEMPORARILY_BLOCKED = "ip_temporarily_blocked";
+
     private static final Logger logger = Logger.getLogger(DirectGrantIpAuthenticator.class);
 
     public static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
             AuthenticationExecutionModel.Requirement.REQUIRED, AuthenticationExecutionModel.Requirement.DISABLED };
 
+    @Override
+    public void init(Scope config) {
+        DirectGrantDecisions.configure(
+                config.getInt("decisionCacheSize", DirectGrantDecisions.DEFAULT_MAX_USERS),
+                config.getLong("decisionCacheTtlSeconds", DirectGrantDecisions.DEFAULT_TTL_SECONDS));
+        DirectGrantFailures.configure(
+                config.getInt("failureBlockThreshold", DirectGrantFailures.DEFAULT_THRESHOLD),
+                config.getLong("failureHalfLifeSeconds", DirectGrantFailures.DEFAULT_HALF_LIFE_SECONDS),
+                config.getInt("failureStripes", DirectGrantFailures.DEFAULT_STRIPES));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, DirectGrantIpAuthenticator::warnWithoutTrustedProxies);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to check direct grant IP authenticator executions for trusted proxies", e);
+        }
+    }
+
+    /**
+     * Warns about enabled executions without trusted proxies. Their failures are counted against the address of the
+     * connection, see {@link DirectGrantFailures}.
+     */
+    private static void warnWithoutTrustedProxies(KeycloakSession session) {
+        for (RealmModel realm : session.realms().getRealms()) {
+            for (AuthenticationFlowModel flow : realm.getAuthenticationFlows()) {
+                for (AuthenticationExecutionModel execution : realm.getAuthenticationExecutions(flow.getId())) {
+                    if (!AUTHENTICATOR_ID.equals(execution.getAuthenticator()) || execution.isDisabled()) {
+                        continue;
+                    }
+                    AuthenticatorConfigModel config = execution.getAuthenticatorConfig() == null ? null
+                            : realm.getAuthenticatorConfigById(execution.getAuthenticatorConfig());
+                    String proxies = config == null || config.getConfig() == null ? null
+                            : config.getConfig().get(TRUSTED_PROXIES);
+                    if (proxies == null || proxies.trim().isEmpty()) {
+                        logger.warnf("%s in flow %s of realm %s has no trusted proxies. X-Forwarded-For can be "
+                                + "spoofed, so failed logins are counted against the remote address, which is shared "
+                                + "by all clients behind a reverse proxy", AUTHENTICATOR_NAME, flow.getAlias(),
+                                realm.getName());
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        String ip = IpUtil.getIp(context.getHttpRequest(), context.getSession());
-        if (!IpAuthenticatorUtil.authenticate(context, ip)) {
-            UserModel user = context.getUser();
-            String clientId = context.getAuthenticationSession().getClient().getClientId();
+        ClientIp ip = IpUtil.resolve(context);
+        UserModel user = context.getUser();
+        String clientId = context.getAuthenticationSession().getClient().getClientId();
+        String realmId = context.getRealm().getId();
+        IpAuthenticatorConfig config = IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig());
+
+        if (config.isAllowedNetwork(clientId, ip)) {
+            logger.debugf("%s;%s;%s -- IP in allowed networks of client", user.getUsername(), clientId, ip);
+            context.success();
+            return;
+        }
+
+        // Runs after password validation, DirectGrantIpBlockAuthenticator rejects before it
+        DirectGrantFailures failures = DirectGrantFailures.get();
+        if (failures.isBlocked(ip)) {
+            logger.debugf("%s;%s -- IP temporarily blocked after repeated failures", user.getUsername(), ip);
+
+            context.getEvent().user(user);
+            context.getEvent().error(IP_TEMPORARILY_BLOCKED);
+            Response challengeResponse = errorResponse(429, IP_TEMPORARILY_BLOCKED,
+                    "Too many failed logins from IP, try again later");
+            context.failure(AuthenticationFlowError.INVALID_USER, challengeResponse);
+            return;
+        }
+
+        DirectGrantDecisions decisions = DirectGrantDecisions.get();
+
+        ConditionalActionMode cached = decisions.get(realmId, user.getId(), clientId, ip, config);
+        if (cached == ConditionalActionMode.ATTEMPTED) {
+            context.attempted();
+            return;
+        } else if (cached != null) {
+            context.success();
+            return;
+        }
+
+        IpAuthenticatorUtil.Decision decision = IpAuthenticatorUtil.decide(context, ip);
+        if (decision != null) {
+            decisions.put(realmId, user.getId(), clientId, ip, config, decision.getOutcome(),
+                    decision.getValidUntil());
+        } else {
             logger.infof("%s;%s;%s -- IP verification failed" , user.getUsername(), clientId, ip);
+            failures.failed(ip);
 
             context.getEvent().user(user);
             context.getEvent().error(IP_VERIFICATION_MISSING);
@@ -145,8 +236,31 @@ public class DirectGrantIpAuthenticator extends AbstractDirectGrantAuthenticator
                 .setHelpText(String.format("What to do in case mode could not be otherwise determined. Defaults to %s.",
                         ConditionalActionMode.defaultValue()));
 
-        return Arrays
-                .asList(skipRole, forceRole, skipClients, defaultOutcome);
+        return Arrays.asList(skipRole, forceRole, skipClients, defaultOutcome, trustedProxiesProperty(),
+                clientNetworksProperty());
+    }
+
+    static ProviderConfigProperty trustedProxiesProperty() {
+        ProviderConfigProperty trustedProxies = new ProviderConfigProperty();
+        trustedProxies.setType(STRING_TYPE);
+        trustedProxies.setName(TRUSTED_PROXIES);
+        trustedProxies.setLabel("Trusted proxies");
+        trustedProxies.setHelpText("Addresses or CIDR ranges of trusted reverse proxies (comma separated list). "
+                + "If set, the client IP is the first untrusted hop from the right in the Forwarded or X-Forwarded-For "
+                + "header. If empty, the left-most X-Forwarded-For address is used, and failed logins are counted "
+                + "against the remote address.");
+        return trustedProxies;
+    }
+
+    static ProviderConfigProperty clientNetworksProperty() {
+        ProviderConfigProperty clientNetworks = new ProviderConfigProperty();
+        clientNetworks.setType(STRING_TYPE);
+        clientNetworks.setName(CLIENT_ALLOWED_NETWORKS);
+        clientNetworks.setLabel("Allowed networks per client");
+        clientNetworks.setHelpText("Addresses or CIDR ranges from which listed clients may log in without a verified "
+                + "IP address, as client-id=range,range;other-client=range. Checked before the verified IP "
+                + "addresses of the user.");
+        return clientNetworks;
     }
 
     @Override
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.authenticators.directgrant.AbstractDirectGrantAuthenticator;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderConfigProperty;
+
+/**
+ * Rejects direct grants from client IP addresses that {@link DirectGrantIpAuthenticator} has temporarily blocked after
+ * repeated failures. Placed first in the direct grant flow, it rejects before the user is looked up and the password
+ * is validated, so a blocked address does not cost a password hash per attempt. Use the same trusted proxies and
+ * allowed networks as the {@link DirectGrantIpAuthenticator} execution of the flow.
+ */
+public class DirectGrantIpBlockAuthenticator extends AbstractDirectGrantAuthenticator {
+
+    public static final String AUTHENTICATOR_ID = "direct-grant-ip-block-authenticator";
+
+    public static final String AUTHENTICATOR_NAME = "Direct Grant IP Block";
+
+    private static final Logger logger = Logger.getLogger(DirectGrantIpBlockAuthenticator.class);
+
+    public static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
+            AuthenticationExecutionModel.Requirement.REQUIRED, AuthenticationExecutionModel.Requirement.DISABLED };
+
+    @Override
+    public void authenticate(AuthenticationFlowContext context) {
+        ClientIp ip = IpUtil.resolve(context);
+        String clientId = context.getAuthenticationSession().getClient().getClientId();
+        IpAuthenticatorConfig config = IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig());
+
+        if (config.isAllowedNetwork(clientId, ip) || !DirectGrantFailures.get().isBlocked(ip)) {
+            context.success();
+            return;
+        }
+
+        logger.debugf("%s;%s -- IP temporarily blocked after repeated failures", clientId, ip);
+        context.getEvent().error(DirectGrantIpAuthenticator.IP_TEMPORARILY_BLOCKED);
+        Response challengeResponse = errorResponse(429, DirectGrantIpAuthenticator.IP_TEMPORARILY_BLOCKED,
+                "Too many failed logins from IP, try again later");
+        context.failure(AuthenticationFlowError.INVALID_USER, challengeResponse);
+    }
+
+    @Override
+    public boolean requiresUser() {
+        return false;
+    }
+
+    @Override
+    public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
+        return true;
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) {
+
+    }
+
+    @Override
+    public String getDisplayType() {
+        return AUTHENTICATOR_NAME;
+    }
+
+    @Override
+    public String getReferenceCategory() {
+        return null;
+    }
+
+    @Override
+    public boolean isConfigurable() {
+        return true;
+    }
+
+    @Override
+    public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+        return REQUIREMENT_CHOICES;
+    }
+
+    @Override
+    public boolean isUserSetupAllowed() {
+        return false;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Rejects direct grants from IP addresses temporarily blocked by the Direct Grant IP Authenticator. "
+                + "Place first in the flow so that blocked addresses are rejected before the password is validated.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return Arrays.asList(DirectGrantIpAuthenticator.trustedProxiesProperty(),
+                DirectGrantIpAuthenticator.clientNetworksProperty());
+    }
+
+    @Override
+    public String getId() {
+        return AUTHENTICATOR_ID;
+    }
+}
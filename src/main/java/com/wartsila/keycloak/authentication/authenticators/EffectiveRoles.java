@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Ids of the effective roles of a user: roles mapped to the user and to the user's groups and their parent groups,
+ * with composite roles expanded. Computed once per request and kept as a session attribute, so that checking any
+ * number of configured roles is a set lookup each.
+ */
+final class EffectiveRoles {
+
+    private static final String ATTRIBUTE_PREFIX = EffectiveRoles.class.getName() + ".";
+
+    private EffectiveRoles() {
+        // utility
+    }
+
+    /**
+     * @param session session of the current request
+     * @param user user
+     * @return ids of effective roles of user
+     */
+    @SuppressWarnings("unchecked")
+    static Set<String> get(KeycloakSession session, UserModel user) {
+        String attribute = ATTRIBUTE_PREFIX + user.getId();
+        Set<String> ids = (Set<String>) session.getAttribute(attribute);
+        if (ids == null) {
+            ids = expand(user);
+            session.setAttribute(attribute, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * @param roleIds role ids
+     * @param effective effective role ids from {@link #get(KeycloakSession, UserModel)}
+     * @return true if any of roleIds is effective
+     */
+    static boolean any(Set<String> roleIds, Set<String> effective) {
+        for (String id : roleIds) {
+            if (effective.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> expand(UserModel user) {
+        Set<String> ids = new HashSet<>();
+        Deque<RoleModel> pending = new ArrayDeque<>(user.getRoleMappings());
+        Set<String> groups = new HashSet<>();
+        for (GroupModel group : user.getGroups()) {
+            for (GroupModel g = group; g != null && groups.add(g.getId()); g = g.getParent()) {
+                pending.addAll(g.getRoleMappings());
+            }
+        }
+        while (!pending.isEmpty()) {
+            RoleModel role = pending.pop();
+            if (ids.add(role.getId()) && role.isComposite()) {
+                pending.addAll(role.getComposites());
+            }
+        }
+        return ids;
+    }
+}
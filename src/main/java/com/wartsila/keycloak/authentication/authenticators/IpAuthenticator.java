@@ -16,12 +16,15 @@
  */
 package com.wartsila.keycloak.authentication.authenticators;
 
+import com.wartsila.keycloak.email.EmailDispatcher;
+import com.wartsila.keycloak.email.EmailTemplates;
 import com.wartsila.keycloak.email.EmailUtil;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.FlowStatus;
+import org.keycloak.cluster.ExecutionResult;
 import org.keycloak.common.util.Time;
 import org.keycloak.email.EmailException;
 import org.keycloak.events.Details;
@@ -29,7 +32,6 @@ import org.keycloak.events.Errors;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventType;
 import org.keycloak.forms.login.LoginFormsProvider;
-import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -39,9 +41,7 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -54,6 +54,24 @@ public class IpAuthenticator implements Authenticator {
     private static final String IP_AUTHORIZE_FTL = "ip-authorize.ftl";
     private static final Logger logger = Logger.getLogger(IpAuthenticator.class);
 
+    private final EmailDispatcher emailDispatcher;
+
+    private final EmailTemplates emailTemplates;
+
+    private final VerificationEmailLimits emailLimits;
+
+    /**
+     * @param emailDispatcher dispatcher for sending verification emails in the background
+     * @param emailTemplates shared email themes and compiled templates
+     * @param emailLimits per user and per IP address limits for verification emails
+     */
+    public IpAuthenticator(EmailDispatcher emailDispatcher, EmailTemplates emailTemplates,
+            VerificationEmailLimits emailLimits) {
+        this.emailDispatcher = emailDispatcher;
+        this.emailTemplates = emailTemplates;
+        this.emailLimits = emailLimits;
+    }
+
     @Override
     public void close() {
         // NOOP
@@ -61,7 +79,7 @@ public class IpAuthenticator implements Authenticator {
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        String ip = IpUtil.getIp(context.getHttpRequest(), context.getSession());
+        ClientIp ip = IpUtil.resolve(context);
         if (IpAuthenticatorUtil.authenticate(context, ip)) {
             UserModel user = context.getUser();
             String clientId = context.getAuthenticationSession().getClient().getClientId();
@@ -75,7 +93,7 @@ public class IpAuthenticator implements Authenticator {
     @Override
     public void action(AuthenticationFlowContext context) {
         UserModel user = context.getUser();
-        String ip = IpUtil.getIp(context.getHttpRequest(), context.getSession());
+        ClientIp ip = IpUtil.resolve(context);
         String clientId = context.getAuthenticationSession().getClient().getClientId();
 
         if (context.getStatus() == FlowStatus.SUCCESS) {
@@ -97,14 +115,25 @@ public class IpAuthenticator implements Authenticator {
 
         if (formData.containsKey("continue")) {
             String secret = formData.getFirst("nonce").trim();
+            String pendingKey = PendingVerifications.key(context.getRealm().getId(), user.getId(), ip.getText());
+            String entry = null;
             if (secret.equals(context.getAuthenticationSession().getAuthNote(IP_SECRET)) ||
                     secret.equals(context.getAuthenticationSession().getAuthNote(IP_SECRET_MANUAL))) {
+                entry = context.getAuthenticationSession().getAuthNote(IP_ADDRESS);
+            } else {
+                // the email may have been sent by a concurrent login of the same user from the same address
+                PendingVerification pending = PendingVerifications.find(pendingKey, secret);
+                if (pending != null) {
+                    entry = pending.getEntry();
+                }
+            }
+            if (entry != null) {
 
                 infoLog(user.getUsername(), clientId, ip, "IP verification success with secret \"" + secret + "\"");
 
-                List<String> list = new ArrayList<>(user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS));
-                list.add(context.getAuthenticationSession().getAuthNote(IP_ADDRESS));
-                user.setAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS, list);
+                VerifiedIpAddresses.store(context.getSession()).addVerifiedIp(context.getRealm(), user,
+                        IpAuthorizationEntry.parse(entry), maxEntries(context));
+                PendingVerifications.remove(context.getSession(), pendingKey);
                 context.getAuthenticationSession().removeAuthNote(IP_ADDRESS);
                 context.getAuthenticationSession().removeAuthNote(IP_SECRET);
                 context.getAuthenticationSession().removeAuthNote(IP_SECRET_MANUAL);
@@ -132,49 +161,38 @@ public class IpAuthenticator implements Authenticator {
                 return;
             }
 
-            String ipAddress = IpUtil.getIp(context.getHttpRequest(), context.getSession());
-            int validityInSecs = context.getRealm().getActionTokenGeneratedByUserLifespan();
-            int absoluteExpirationInSecs = Time.currentTime() + validityInSecs;
-
-            // We send the secret in the email in a link as a query param.
-            IpAuthorizeActionToken token = new IpAuthorizeActionToken(user.getId(), absoluteExpirationInSecs);
-            token.setEmail(email);
-            token.setIpAddress(ipAddress);
-            token.setFlowId(context.getExecution().getFlowId());
-            token.setAuthorizationExpires(authenticationExpires(context));
-
-            String link = UriBuilder
-                    .fromUri(context.getActionTokenUrl(
-                            token.serialize(context.getSession(), context.getRealm(), context.getUriInfo())))
-                    .build().toString();
-
-            try {
-                String manualNonce = RandomNonceUtils.makeManualNonce();
-                HashMap<String, Object> attributes = new HashMap<>();
-                attributes.put("ip", ipAddress);
-                attributes.put("link", link);
-                attributes.put("linkExpiration", TimeUnit.SECONDS.toMinutes(validityInSecs));
-                attributes.put("realmName", context.getRealm().getName());
-                attributes.put("nonce", token.getActionVerificationNonce());
-                attributes.put("manualNonce", manualNonce);
-
-                EmailUtil.from(context).send(IP_AUTHORIZE_FTL, "Eniram IP verification", attributes);
-
-                infoLog(user.getUsername(), clientId, ip, "Email with verification code \"" + token.getActionVerificationNonce() + "\" and manual verification code \"" + manualNonce + "\" sent to " + user.getEmail());
-
-                context.getAuthenticationSession().setAuthNote(IP_SECRET,
-                        token.getActionVerificationNonce().toString().trim());
-                context.getAuthenticationSession().setAuthNote(IP_SECRET_MANUAL,
-                        manualNonce.trim());
-                context.getAuthenticationSession().setAuthNote(IP_ADDRESS, IpAuthorizationEntry.from(token).format());
+            String pendingKey = PendingVerifications.key(context.getRealm().getId(), user.getId(), ip.getText());
+            PendingVerification pending = PendingVerifications.get(pendingKey, email);
+            if (pending != null) {
+                infoLog(user.getUsername(), clientId, ip, "Reusing pending IP verification sent to " + email);
+                emailSent(context, pending);
+                return;
+            }
 
-                context.forceChallenge(
-                        context.form().setSuccess(Messages.EMAIL_SENT).createForm(IP_AUTHORIZE_SENT_FTL));
-            } catch (EmailException e) {
+            if (!this.emailLimits.tryAcquire(context.getRealm(), user, ip)) {
+                infoLog(user.getUsername(), clientId, ip, "Verification email rate limit exceeded");
                 context.getEvent().clone().event(EventType.CUSTOM_REQUIRED_ACTION)
                         .detail(Details.USERNAME, user.getUsername()).user(user).error(Errors.EMAIL_SEND_FAILED);
-                Response challenge = context.form().setError(Errors.EMAIL_SEND_FAILED).createErrorPage();
-                context.failure(AuthenticationFlowError.INTERNAL_ERROR, challenge);
+                context.forceChallenge(challenge(context,
+                        f -> f.setError(IpAuthorizeConstants.IP_VERIFICATION_EMAIL_RATE_LIMITED_MESSAGE)));
+                return;
+            }
+
+            String normalizedEmail = email;
+            ExecutionResult<PendingVerification> sent = PendingVerifications.send(context.getSession(), pendingKey,
+                    () -> sendVerification(context, pendingKey, normalizedEmail, ip, clientId));
+            if (!sent.isExecuted()) {
+                // a concurrent login is sending the email, its secrets are accepted once it has been published
+                infoLog(user.getUsername(), clientId, ip, "IP verification email already being sent to " + email);
+                pending = PendingVerifications.get(pendingKey, email);
+                if (pending != null) {
+                    emailSent(context, pending);
+                } else {
+                    context.forceChallenge(
+                            context.form().setSuccess(Messages.EMAIL_SENT).createForm(IP_AUTHORIZE_SENT_FTL));
+                }
+            } else if (sent.getResult() != null) {
+                emailSent(context, sent.getResult());
             }
         } else {
             infoLog(user.getUsername(), clientId, ip, "Email " + email + " does not match the one on record " + user.getEmail());
@@ -183,26 +201,83 @@ public class IpAuthenticator implements Authenticator {
         }
     }
 
-    private void infoLog(String username, String clientId, String ip, String s) {
+    /**
+     * Creates the action token and manual nonce and queues the verification email.
+     *
+     * @return sent verification, or null if the email could not be queued and the flow has been failed
+     */
+    private PendingVerification sendVerification(AuthenticationFlowContext context, String pendingKey, String email,
+            ClientIp ip, String clientId) {
+        UserModel user = context.getUser();
+        String ipAddress = ip.getText();
+        int validityInSecs = context.getRealm().getActionTokenGeneratedByUserLifespan();
+        int absoluteExpirationInSecs = Time.currentTime() + validityInSecs;
+
+        // We send the secret in the email in a link as a query param.
+        IpAuthorizeActionToken token = new IpAuthorizeActionToken(user.getId(), absoluteExpirationInSecs);
+        token.setEmail(email);
+        token.setIpAddress(ipAddress);
+        token.setFlowId(context.getExecution().getFlowId());
+        token.setAuthorizationExpires(authenticationExpires(context));
+        token.setMaxEntries(maxEntries(context));
+
+        String link = UriBuilder
+                .fromUri(context.getActionTokenUrl(
+                        token.serialize(context.getSession(), context.getRealm(), context.getUriInfo())))
+                .build().toString();
+
+        try {
+            String manualNonce = RandomNonceUtils.makeManualNonce();
+            HashMap<String, Object> attributes = new HashMap<>();
+            attributes.put("ip", ipAddress);
+            attributes.put("link", link);
+            attributes.put("linkExpiration", TimeUnit.SECONDS.toMinutes(validityInSecs));
+            attributes.put("realmName", context.getRealm().getName());
+            attributes.put("nonce", token.getActionVerificationNonce());
+            attributes.put("manualNonce", manualNonce);
+
+            this.emailDispatcher.dispatch(EmailUtil.from(context, this.emailTemplates)
+                    .render(IP_AUTHORIZE_FTL, "Eniram IP verification", attributes)
+                    .withExpiresAt(absoluteExpirationInSecs));
+
+            infoLog(user.getUsername(), clientId, ip, "Email with verification code \"" + token.getActionVerificationNonce() + "\" and manual verification code \"" + manualNonce + "\" queued to " + user.getEmail());
+
+            return new PendingVerification(pendingKey, email, token.getActionVerificationNonce().toString().trim(),
+                    manualNonce.trim(), IpAuthorizationEntry.from(token).format(), absoluteExpirationInSecs);
+        } catch (EmailException e) {
+            context.getEvent().clone().event(EventType.CUSTOM_REQUIRED_ACTION)
+                    .detail(Details.USERNAME, user.getUsername()).user(user).error(Errors.EMAIL_SEND_FAILED);
+            Response challenge = context.form().setError(Errors.EMAIL_SEND_FAILED).createErrorPage();
+            context.failure(AuthenticationFlowError.INTERNAL_ERROR, challenge);
+            return null;
+        }
+    }
+
+    private void emailSent(AuthenticationFlowContext context, PendingVerification verification) {
+        context.getAuthenticationSession().setAuthNote(IP_SECRET, verification.getNonce());
+        context.getAuthenticationSession().setAuthNote(IP_SECRET_MANUAL, verification.getManualNonce());
+        context.getAuthenticationSession().setAuthNote(IP_ADDRESS, verification.getEntry());
+
+        context.forceChallenge(context.form().setSuccess(Messages.EMAIL_SENT).createForm(IP_AUTHORIZE_SENT_FTL));
+    }
+
+    private void infoLog(String username, String clientId, ClientIp ip, String s) {
         logger.infof("%s;%s;%s -- " + s, username, clientId, ip);
     }
 
     private long authenticationExpires(AuthenticationFlowContext context) {
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        long expiresAfter;
-        if (config == null) {
-            expiresAfter = IpAuthenticatorFactory.IP_AUTHORIZE_EXPIRES_SECONDS_DEFAULT_VALUE;
-        } else {
-            String text = config.getConfig().get(IpAuthorizeConstants.IP_AUTHORIZE_EXPIRES_SECONDS);
-            if (text == null || text.isEmpty()) {
-                expiresAfter = IpAuthenticatorFactory.IP_AUTHORIZE_EXPIRES_SECONDS_DEFAULT_VALUE;
-            } else {
-                expiresAfter = Long.valueOf(text);
-            }
-        }
+        long expiresAfter = config(context).getAuthorizationExpiresSeconds();
         return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresAfter);
     }
 
+    private int maxEntries(AuthenticationFlowContext context) {
+        return config(context).getMaxEntries();
+    }
+
+    private static IpAuthenticatorConfig config(AuthenticationFlowContext context) {
+        return IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig());
+    }
+
     protected Response challenge(AuthenticationFlowContext context) {
         return challenge(context, f -> {
         });
@@ -210,7 +285,7 @@ public class IpAuthenticator implements Authenticator {
 
     protected Response challenge(AuthenticationFlowContext context, Consumer<LoginFormsProvider> editor) {
         LoginFormsProvider forms = context.form();
-        forms.setAttribute("ip", IpUtil.getIp(context.getHttpRequest(), context.getSession()));
+        forms.setAttribute("ip", IpUtil.resolve(context).getText());
         editor.accept(forms);
         return forms.createForm(IP_AUTHORIZE_FTL);
     }
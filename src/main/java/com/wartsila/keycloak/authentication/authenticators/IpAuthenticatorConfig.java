@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.keycloak.models.utils.KeycloakModelUtils.getRoleFromString;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import com.wartsila.support.IpPrefixSet;
+
+/**
+ * Compiled authenticator configuration. A snapshot is compiled once per {@link AuthenticatorConfigModel} and reused
+ * until the configured values change, so that logins do not split and parse the configuration strings. Configured
+ * roles are resolved to ids when compiled. Snapshots are also recompiled after {@link #MAX_AGE_MILLIS} so that roles
+ * that are deleted and recreated with the same name are picked up. At most {@link #MAX_CONFIGS} snapshots are kept,
+ * the one compiled longest ago is dropped to make room, and all are dropped when the authenticator factory is closed.
+ */
+final class IpAuthenticatorConfig {
+
+    static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final int MAX_CONFIGS = 1024;
+
+    private static final Logger logger = Logger.getLogger(IpAuthenticatorConfig.class);
+
+    private static final ConcurrentMap<String, IpAuthenticatorConfig> compiled = new ConcurrentHashMap<>();
+
+    private static final IpAuthenticatorConfig DEFAULT = new IpAuthenticatorConfig(null,
+            Collections.<String, String> emptyMap());
+
+    private final Map<String, String> source;
+
+    private final long compiledAt;
+
+    private final Set<String> skipClients;
+
+    private final Set<String> forceRoleIds;
+
+    private final Set<String> skipRoleIds;
+
+    private final Set<String> attemptRoleIds;
+
+    private final ConditionalActionMode defaultMode;
+
+    private final long authorizationExpiresSeconds;
+
+    private final int maxEntries;
+
+    private final IpPrefixSet trustedProxies;
+
+    private final Map<String, IpPrefixSet> clientNetworks;
+
+    private IpAuthenticatorConfig(RealmModel realm, Map<String, String> source) {
+        this.source = source;
+        this.compiledAt = System.currentTimeMillis();
+        this.skipClients = clients(source.get(IpAuthorizeConstants.SKIP_IP_AUTHORIZE_CLIENT));
+        this.forceRoleIds = roleIds(realm, source.get(IpAuthorizeConstants.FORCE_IP_AUTHORIZE_ROLE));
+        this.skipRoleIds = roleIds(realm, source.get(IpAuthorizeConstants.SKIP_IP_AUTHORIZE_ROLE));
+        this.attemptRoleIds = roleIds(realm, source.get(IpAuthorizeConstants.ATTEMPT_IP_AUTHORIZE_ROLE));
+        this.defaultMode = mode(source.get(IpAuthorizeConstants.IP_DEFAULT_AUTHORIZE));
+        this.authorizationExpiresSeconds = number(source, IpAuthorizeConstants.IP_AUTHORIZE_EXPIRES_SECONDS,
+                IpAuthenticatorFactory.IP_AUTHORIZE_EXPIRES_SECONDS_DEFAULT_VALUE);
+        this.maxEntries = (int) number(source, IpAuthorizeConstants.IP_AUTHORIZE_MAX_ENTRIES,
+                IpAuthenticatorFactory.IP_AUTHORIZE_MAX_ENTRIES_DEFAULT_VALUE);
+        this.trustedProxies = proxies(source.get(IpAuthorizeConstants.TRUSTED_PROXIES));
+        this.clientNetworks = clientNetworks(source.get(IpAuthorizeConstants.CLIENT_ALLOWED_NETWORKS));
+    }
+
+    /**
+     * Returns the compiled snapshot of config, compiling it if it has not been compiled yet or has changed.
+     *
+     * @param realm realm of config
+     * @param config authenticator configuration, may be null
+     * @return compiled configuration, defaults if config is null
+     */
+    static IpAuthenticatorConfig get(RealmModel realm, AuthenticatorConfigModel config) {
+        if (config == null || config.getConfig() == null) {
+            return DEFAULT;
+        }
+        IpAuthenticatorConfig current = compiled.get(config.getId());
+        if (current == null || !current.source.equals(config.getConfig())
+                || System.currentTimeMillis() - current.compiledAt > MAX_AGE_MILLIS) {
+            current = new IpAuthenticatorConfig(realm, new HashMap<>(config.getConfig()));
+            if (compiled.size() >= MAX_CONFIGS && !compiled.containsKey(config.getId())) {
+                evictOldest();
+            }
+            compiled.put(config.getId(), current);
+        }
+        return current;
+    }
+
+    /**
+     * Drops all compiled snapshots.
+     */
+    static void clear() {
+        compiled.clear();
+    }
+
+    /**
+     * Drops the snapshot compiled longest ago. Only runs when a snapshot is compiled and the map is full, so the scan
+     * is not on the path of logins that hit a snapshot.
+     */
+    private static void evictOldest() {
+        Map.Entry<String, IpAuthenticatorConfig> oldest = null;
+        for (Map.Entry<String, IpAuthenticatorConfig> entry : compiled.entrySet()) {
+            if (oldest == null || entry.getValue().compiledAt < oldest.getValue().compiledAt) {
+                oldest = entry;
+            }
+        }
+        if (oldest != null) {
+            compiled.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * @param clientId client id
+     * @return true if IP verification is skipped for the client, compared case-insensitively
+     */
+    boolean isSkipClient(String clientId) {
+        return !this.skipClients.isEmpty() && this.skipClients.contains(clientId.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return ids of roles for which IP verification is forced
+     */
+    Set<String> getForceRoleIds() {
+        return this.forceRoleIds;
+    }
+
+    /**
+     * @return ids of roles for which IP verification is skipped
+     */
+    Set<String> getSkipRoleIds() {
+        return this.skipRoleIds;
+    }
+
+    /**
+     * @return ids of roles for which the authenticator is attempted
+     */
+    Set<String> getAttemptRoleIds() {
+        return this.attemptRoleIds;
+    }
+
+    /**
+     * @return true if any role is configured, false if mode does not depend on roles
+     */
+    boolean hasRoles() {
+        return !this.forceRoleIds.isEmpty() || !this.skipRoleIds.isEmpty() || !this.attemptRoleIds.isEmpty();
+    }
+
+    /**
+     * @return configured fallback mode, {@link ConditionalActionMode#NOT_CHOSEN} if none
+     */
+    ConditionalActionMode getDefaultMode() {
+        return this.defaultMode;
+    }
+
+    long getAuthorizationExpiresSeconds() {
+        return this.authorizationExpiresSeconds;
+    }
+
+    int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * @return trusted proxies, or null if none are configured
+     */
+    IpPrefixSet getTrustedProxies() {
+        return this.trustedProxies;
+    }
+
+    /**
+     * @param clientId client id
+     * @param ip client IP address
+     * @return true if ip is in a network allowed for the client without verification, compared case-insensitively
+     */
+    boolean isAllowedNetwork(String clientId, ClientIp ip) {
+        if (this.clientNetworks.isEmpty() || ip.getAddress() == null) {
+            return false;
+        }
+        IpPrefixSet networks = this.clientNetworks.get(clientId.toLowerCase(Locale.ROOT));
+        return networks != null && networks.contains(ip.getAddress());
+    }
+
+    private static Set<String> clients(String value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        Set<String> clients = new HashSet<>();
+        for (String client : value.split(",")) {
+            clients.add(client.trim().toLowerCase(Locale.ROOT));
+        }
+        return clients;
+    }
+
+    private static Set<String> roleIds(RealmModel realm, String value) {
+        if (value == null || realm == null) {
+            return Collections.emptySet();
+        }
+        Set<String> ids = new HashSet<>();
+        for (String name : value.split(",")) {
+            RoleModel role = getRoleFromString(realm, name);
+            if (role == null) {
+                logger.debugf("Ignoring unknown role \"%s\" in realm %s", name, realm.getName());
+            } else {
+                ids.add(role.getId());
+            }
+        }
+        return ids;
+    }
+
+    private static ConditionalActionMode mode(String value) {
+        for (ConditionalActionMode mode : ConditionalActionMode.values()) {
+            if (mode.toString().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        return ConditionalActionMode.NOT_CHOSEN;
+    }
+
+    private static long number(Map<String, String> source, String name, long defaultValue) {
+        String text = source.get(name);
+        if (text == null || text.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            logger.warnf("Invalid %s \"%s\", using %d", name, text, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Compiles {@code client=range,range;client=range} into a prefix set per lower-cased client id.
+     */
+    private static Map<String, IpPrefixSet> clientNetworks(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, IpPrefixSet> networks = new HashMap<>();
+        for (String client : value.split(";")) {
+            int separator = client.indexOf('=');
+            if (separator <= 0) {
+                if (!client.trim().isEmpty()) {
+                    logger.warnf("Ignoring allowed networks \"%s\" without client id", client);
+                }
+                continue;
+            }
+            String clientId = client.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            IpPrefixSet prefixes = networks.computeIfAbsent(clientId, k -> new IpPrefixSet());
+            for (String range : client.substring(separator + 1).split(",")) {
+                range = range.trim();
+                if (range.isEmpty()) {
+                    continue;
+                }
+                try {
+                    prefixes.add(range, IpPrefixSet.NEVER_EXPIRES);
+                } catch (IllegalArgumentException e) {
+                    logger.warnf("Ignoring invalid allowed network \"%s\" of client %s: %s", range, clientId,
+                            e.getMessage());
+                }
+            }
+        }
+        return networks;
+    }
+
+    private static IpPrefixSet proxies(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        IpPrefixSet proxies = new IpPrefixSet();
+        for (String range : value.split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) {
+                continue;
+            }
+            try {
+                proxies.add(range, IpPrefixSet.NEVER_EXPIRES);
+            } catch (IllegalArgumentException e) {
+                logger.warnf("Ignoring invalid trusted proxy \"%s\": %s", range, e.getMessage());
+            }
+        }
+        return proxies;
+    }
+}
@@ -22,11 +22,15 @@ import static org.keycloak.provider.ProviderConfigProperty.LIST_TYPE;
 import static org.keycloak.provider.ProviderConfigProperty.ROLE_TYPE;
 import static org.keycloak.provider.ProviderConfigProperty.STRING_TYPE;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
@@ -34,33 +38,172 @@ import org.keycloak.models.AuthenticationExecutionModel.Requirement;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import com.wartsila.keycloak.email.EmailDispatcher;
+import com.wartsila.keycloak.email.EmailOutbox;
+import com.wartsila.keycloak.email.EmailTemplates;
+import com.wartsila.keycloak.email.PooledEmailSender;
 
 public class IpAuthenticatorFactory implements AuthenticatorFactory {
 
     public static final long IP_AUTHORIZE_EXPIRES_SECONDS_DEFAULT_VALUE = 60 * 60 * 24 * 30;
 
+    public static final int IP_AUTHORIZE_MAX_ENTRIES_DEFAULT_VALUE = 50;
+
     public static final String AUTHENTICATOR_ID = "ip-authenticator";
 
     public static final String AUTHENTICATOR_NAME = "IP Authenticator";
 
+    public static final long VERIFIED_IP_SWEEP_INTERVAL_SECONDS_DEFAULT_VALUE = 60 * 60 * 24;
+
+    public static final int VERIFIED_IP_SWEEP_BATCH_SIZE_DEFAULT_VALUE = 100;
+
+    public static final int VERIFIED_IP_SWEEP_USERS_PER_SECOND_DEFAULT_VALUE = 200;
+
+    public static final long STATISTICS_LOG_INTERVAL_SECONDS_DEFAULT_VALUE = 15 * 60;
+
+    public static final String STATISTICS_TASK_NAME = "ip-authenticator-statistics";
+
+    private static final Logger logger = Logger.getLogger(IpAuthenticatorFactory.class);
+
+    private long sweepIntervalSeconds;
+
+    private long statisticsIntervalSeconds;
+
+    private VerifiedIpSweeper sweeper;
+
+    private KeycloakSessionFactory timerSessionFactory;
+
+    private EmailDispatcher emailDispatcher;
+
+    private EmailTemplates emailTemplates;
+
+    private VerificationEmailLimits emailLimits;
+
     @Override
     public Authenticator create(KeycloakSession session) {
-        return new IpAuthenticator();
+        return new IpAuthenticator(this.emailDispatcher, this.emailTemplates, this.emailLimits);
     }
 
     @Override
     public void init(Scope config) {
-        // NOOP
+        VerifiedIpAddresses.configureCache(config.getInt("verifiedIpCacheSize", VerifiedIpCache.DEFAULT_MAX_ENTRIES));
+        VerifiedIpAddresses.configurePruning(config.getLong("verifiedIpPruneGraceSeconds", 0L));
+        RandomNonceUtils.configure(config.getInt("manualNonceLength", RandomNonceUtils.DEFAULT_LENGTH),
+                config.get("manualNonceLetters", RandomNonceUtils.UPPER_CHARACTERS),
+                config.get("manualNonceDigits", RandomNonceUtils.NUMBER_CHARACTERS));
+
+        this.sweepIntervalSeconds = config.getLong("verifiedIpSweepIntervalSeconds",
+                VERIFIED_IP_SWEEP_INTERVAL_SECONDS_DEFAULT_VALUE);
+        this.statisticsIntervalSeconds = config.getLong("statisticsLogIntervalSeconds",
+                STATISTICS_LOG_INTERVAL_SECONDS_DEFAULT_VALUE);
+        this.sweeper = new VerifiedIpSweeper(
+                config.getInt("verifiedIpSweepBatchSize", VERIFIED_IP_SWEEP_BATCH_SIZE_DEFAULT_VALUE),
+                config.getInt("verifiedIpSweepUsersPerSecond", VERIFIED_IP_SWEEP_USERS_PER_SECOND_DEFAULT_VALUE));
+
+        PooledEmailSender emailSender = new PooledEmailSender(
+                config.getInt("smtpPoolSize", PooledEmailSender.DEFAULT_POOL_SIZE),
+                config.getLong("smtpIdleTimeoutMillis", PooledEmailSender.DEFAULT_IDLE_TIMEOUT_MILLIS));
+        this.emailDispatcher = new EmailDispatcher(emailSender, openEmailOutbox(config),
+                config.getLong("emailOutboxFlushMillis", EmailDispatcher.DEFAULT_OUTBOX_FLUSH_MILLIS),
+                config.getInt("emailWorkers", EmailDispatcher.DEFAULT_WORKERS),
+                config.getInt("emailQueueCapacity", EmailDispatcher.DEFAULT_QUEUE_CAPACITY),
+                config.getInt("emailMaxAttempts", EmailDispatcher.DEFAULT_MAX_ATTEMPTS),
+                config.getLong("emailRetryBackoffMillis", EmailDispatcher.DEFAULT_RETRY_BACKOFF_MILLIS));
+        this.emailTemplates = new EmailTemplates();
+        this.emailLimits = new VerificationEmailLimits(
+                config.getInt("emailRateLimitPerUser", VerificationEmailLimits.DEFAULT_USER_CAPACITY),
+                config.getInt("emailRateLimitPerIp", VerificationEmailLimits.DEFAULT_IP_CAPACITY),
+                config.getLong("emailRateLimitPeriodSeconds", VerificationEmailLimits.DEFAULT_PERIOD_SECONDS),
+                config.getInt("emailRateLimitStripes", VerificationEmailLimits.DEFAULT_STRIPES));
+    }
+
+    /**
+     * Opens the email outbox, by default {@code ip-authenticator/email-outbox.dat} in the server data directory.
+     *
+     * @return outbox, or null if disabled with an empty {@code emailOutboxFile} or it could not be opened
+     */
+    private static EmailOutbox openEmailOutbox(Scope config) {
+        String dataDir = System.getProperty("jboss.server.data.dir");
+        String defaultFile = dataDir == null ? null
+                : Paths.get(dataDir, "ip-authenticator", "email-outbox.dat").toString();
+        String file = config.get("emailOutboxFile", defaultFile);
+        if (file == null || file.trim().isEmpty()) {
+            logger.info("Email outbox disabled, queued emails are lost on restart");
+            return null;
+        }
+        try {
+            return new EmailOutbox(Paths.get(file),
+                    config.getLong("emailOutboxSizeBytes", EmailOutbox.DEFAULT_SIZE_BYTES));
+        } catch (IOException e) {
+            logger.errorf(e, "Failed to open email outbox %s, queued emails are lost on restart", file);
+            return null;
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // NOOP
+        this.emailDispatcher.start(factory);
+
+        KeycloakSession clusterSession = factory.create();
+        try {
+            PendingVerifications.register(clusterSession);
+        } finally {
+            clusterSession.close();
+        }
+
+        KeycloakSession session = factory.create();
+        try {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            this.timerSessionFactory = factory;
+            if (this.statisticsIntervalSeconds > 0) {
+                // Node-local counters, so logged on every node
+                timer.scheduleTask(s -> logStatistics(),
+                        TimeUnit.SECONDS.toMillis(this.statisticsIntervalSeconds), STATISTICS_TASK_NAME);
+            }
+            if (this.sweepIntervalSeconds <= 0) {
+                logger.info("Verified IP address sweeper disabled");
+                return;
+            }
+            long interval = TimeUnit.SECONDS.toMillis(this.sweepIntervalSeconds);
+            timer.schedule(new ClusterAwareScheduledTaskRunner(factory, this.sweeper, interval), interval,
+                    VerifiedIpSweeper.TASK_NAME);
+        } finally {
+            session.close();
+        }
+    }
+
+    private void logStatistics() {
+        DirectGrantFailures.get().logStatistics();
+        this.emailDispatcher.logStatistics();
     }
 
     @Override
     public void close() {
-        // NOOP
+        IpAuthenticatorConfig.clear();
+        if (this.timerSessionFactory != null) {
+            KeycloakSession session = this.timerSessionFactory.create();
+            try {
+                TimerProvider timer = session.getProvider(TimerProvider.class);
+                timer.cancelTask(VerifiedIpSweeper.TASK_NAME);
+                timer.cancelTask(STATISTICS_TASK_NAME);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to cancel scheduled tasks", e);
+            } finally {
+                session.close();
+            }
+            this.timerSessionFactory = null;
+        }
+        if (this.sweeper != null) {
+            this.sweeper.close();
+        }
+        if (this.emailDispatcher != null) {
+            logger.infof("Closing, %s", this.emailDispatcher);
+            this.emailDispatcher.close();
+        }
+        logger.infof("Closing, %s", VerifiedIpAddresses.getCache());
     }
 
     @Override
@@ -142,7 +285,23 @@ public class IpAuthenticatorFactory implements AuthenticatorFactory {
                 "How many seconds to maintain IP authorization. May be empty to permanently whitelist IP addresses.");
         authenticationValiditySeconds.setDefaultValue(String.valueOf(IP_AUTHORIZE_EXPIRES_SECONDS_DEFAULT_VALUE));
 
-        return Arrays
-                .asList(skipRole, attemptRole, forceRole, skipClients, defaultOutcome, authenticationValiditySeconds);
+        ProviderConfigProperty maxEntries = new ProviderConfigProperty();
+        maxEntries.setType(ProviderConfigProperty.STRING_TYPE);
+        maxEntries.setName(IpAuthorizeConstants.IP_AUTHORIZE_MAX_ENTRIES);
+        maxEntries.setLabel("Maximum verified IP addresses per user");
+        maxEntries.setHelpText(
+                "When a new IP address is verified and the user already has this many, the least recently used one is removed. 0 for no limit.");
+        maxEntries.setDefaultValue(String.valueOf(IP_AUTHORIZE_MAX_ENTRIES_DEFAULT_VALUE));
+
+        ProviderConfigProperty trustedProxies = new ProviderConfigProperty();
+        trustedProxies.setType(STRING_TYPE);
+        trustedProxies.setName(TRUSTED_PROXIES);
+        trustedProxies.setLabel("Trusted proxies");
+        trustedProxies.setHelpText("Addresses or CIDR ranges of trusted reverse proxies (comma separated list). "
+                + "If set, the client IP is the first untrusted hop from the right in the Forwarded or X-Forwarded-For "
+                + "header. If empty, the left-most X-Forwarded-For address is used.");
+
+        return Arrays.asList(skipRole, attemptRole, forceRole, skipClients, defaultOutcome,
+                authenticationValiditySeconds, maxEntries, trustedProxies);
     }
 }
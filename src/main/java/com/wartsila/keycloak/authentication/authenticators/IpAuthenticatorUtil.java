@@ -16,56 +16,75 @@
  */
 package com.wartsila.keycloak.authentication.authenticators;
 
-import static org.keycloak.models.utils.KeycloakModelUtils.getRoleFromString;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
 
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
-import org.keycloak.models.RealmModel;
-import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.utils.RoleUtils;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
+import com.wartsila.support.IpAddress;
+
 public class IpAuthenticatorUtil {
 
     private static final Logger logger = Logger.getLogger(IpAuthenticatorUtil.class);
 
-    public static boolean authenticate(AuthenticationFlowContext context, String ipAddress) {
+    public static boolean authenticate(AuthenticationFlowContext context, ClientIp ipAddress) {
+        return decide(context, ipAddress) != null;
+    }
+
+    /**
+     * Authenticates like {@link #authenticate(AuthenticationFlowContext, ClientIp)} and tells how long a positive
+     * decision holds.
+     *
+     * @param context authentication flow context
+     * @param ipAddress client IP address
+     * @return decision, or null if authentication failed
+     */
+    static Decision decide(AuthenticationFlowContext context, ClientIp ipAddress) {
         ConditionalActionMode actionMode = checkActionMode(context);
 
         if (actionMode == ConditionalActionMode.SKIP) {
             context.success();
-            return true;
+            return new Decision(ConditionalActionMode.SKIP, Long.MAX_VALUE);
         }
 
         if (actionMode == ConditionalActionMode.ATTEMPTED) {
             context.attempted();
-            return true;
+            return new Decision(ConditionalActionMode.ATTEMPTED, Long.MAX_VALUE);
         }
 
-        if (tryAuthorize(context, ipAddress)) {
-            return true;
+        long validUntil = authorize(context, ipAddress);
+        if (validUntil >= 0) {
+            return new Decision(ConditionalActionMode.SKIP, validUntil);
         }
 
-        return false;
+        return null;
+    }
+
+    static boolean tryAuthorize(AuthenticationFlowContext context, ClientIp ipAddress) {
+        return authorize(context, ipAddress) >= 0;
     }
 
-    static boolean tryAuthorize(AuthenticationFlowContext context, String ipAddress) {
-        if (context.getUser().getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS).stream()
-                .map(IpAuthorizationEntry::parse).anyMatch(e -> e.authorize(ipAddress))) {
+    /**
+     * @return expiry epoch second of the matched verified IP entry, or -1 if none matched
+     */
+    private static long authorize(AuthenticationFlowContext context, ClientIp ipAddress) {
+        IpAddress address = ipAddress.getAddress();
+        if (address == null) {
+            logger.warnf("Could not parse client IP address %s", ipAddress);
+            return -1L;
+        }
+        VerifiedIpStore store = VerifiedIpAddresses.store(context.getSession());
+        VerifiedIpSet verified = store.getVerifiedIps(context.getRealm(), context.getUser());
+        long now = VerifiedIpAddresses.currentTimeSeconds();
+        int matched = verified.match(address, now);
+        if (matched != VerifiedIpSet.NOT_FOUND) {
+            store.matched(context.getRealm(), context.getUser(), verified, matched, now);
             context.success();
-            return true;
+            return verified.getExpiresAt(matched);
         } else {
-            return false;
+            return -1L;
         }
     }
 
@@ -78,17 +97,18 @@ public class IpAuthenticatorUtil {
             return ConditionalActionMode.defaultValue();
         }
 
-        ConditionalActionMode actionMode = checkModeForClients(context);
+        IpAuthenticatorConfig config = IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig());
+        ConditionalActionMode actionMode = checkModeForClients(context, config);
         if (actionMode == ConditionalActionMode.SKIP) {
             logger.infof("Skipping IP verification check: client is disabled");
             return actionMode;
         }
 
         UserModel user = context.getUser();
-        actionMode = checkModeForRoles(context, user);
+        actionMode = checkModeForRoles(context, config, user);
 
         if (actionMode == ConditionalActionMode.NOT_CHOSEN) {
-            actionMode = checkBackupRole(context);
+            actionMode = config.getDefaultMode();
         }
 
         if (actionMode == ConditionalActionMode.NOT_CHOSEN) {
@@ -97,42 +117,35 @@ public class IpAuthenticatorUtil {
         return actionMode;
     }
 
-    private static ConditionalActionMode checkModeForClients(AuthenticationFlowContext context) {
-        if (IpAuthenticatorUtil.shouldSkipIpVerificationForClient(context)) {
+    private static ConditionalActionMode checkModeForClients(AuthenticationFlowContext context,
+            IpAuthenticatorConfig config) {
+        if (IpAuthenticatorUtil.shouldSkipIpVerificationForClient(context, config)) {
             return ConditionalActionMode.SKIP;
         } else {
             return ConditionalActionMode.NOT_CHOSEN;
         }
     }
 
-    private static ConditionalActionMode checkBackupRole(AuthenticationFlowContext context) {
-        Map<String, String> config = context.getAuthenticatorConfig().getConfig();
-        String defaultAuthorize = config.get(IpAuthorizeConstants.IP_DEFAULT_AUTHORIZE);
-        return Stream.of(ConditionalActionMode.values())
-                .filter(mode -> mode.toString().equalsIgnoreCase(defaultAuthorize)).findFirst()
-                .orElse(ConditionalActionMode.NOT_CHOSEN);
-    }
-
-    private static ConditionalActionMode checkModeForRoles(AuthenticationFlowContext context, UserModel user) {
-        Map<String, String> config = context.getAuthenticatorConfig().getConfig();
-        Predicate<String> predicate = anyRolePredicate(context.getRealm(), user);
+    private static ConditionalActionMode checkModeForRoles(AuthenticationFlowContext context,
+            IpAuthenticatorConfig config, UserModel user) {
+        if (!config.hasRoles()) {
+            return ConditionalActionMode.NOT_CHOSEN;
+        }
+        Set<String> effective = EffectiveRoles.get(context.getSession(), user);
 
-        if (predicate.test(config.get(IpAuthorizeConstants.FORCE_IP_AUTHORIZE_ROLE))) {
+        if (EffectiveRoles.any(config.getForceRoleIds(), effective)) {
             return ConditionalActionMode.FORCE;
         }
 
-        if (predicate.test(config.get(IpAuthorizeConstants.SKIP_IP_AUTHORIZE_ROLE))) {
+        if (EffectiveRoles.any(config.getSkipRoleIds(), effective)) {
             return ConditionalActionMode.SKIP;
         }
 
-        return ConditionalActionMode.NOT_CHOSEN;
-    }
+        if (EffectiveRoles.any(config.getAttemptRoleIds(), effective)) {
+            return ConditionalActionMode.ATTEMPTED;
+        }
 
-    private static Predicate<String> anyRolePredicate(RealmModel realm, UserModel user) {
-        Map<String, RoleModel> roles = new HashMap<>();
-        Predicate<? super String> cached = roleName -> RoleUtils.hasRole(user.getRoleMappings(),
-                roles.computeIfAbsent(roleName, r -> getRoleFromString(realm, r)));
-        return str -> str == null ? false : Stream.of(str.split(",")).anyMatch(cached);
+        return ConditionalActionMode.NOT_CHOSEN;
     }
 
     /**
@@ -141,37 +154,48 @@ public class IpAuthenticatorUtil {
      * @return true if IP verification should be skipped
      */
     public static boolean shouldSkipIpVerificationForClient(AuthenticationFlowContext context) {
-        Map<String, String> config = context.getAuthenticatorConfig().getConfig();
-        AuthenticationSessionModel authenticationSession = context.getAuthenticationSession();
-        if (authenticationSession == null || authenticationSession.getClient() == null) {
+        if (context.getAuthenticatorConfig() == null) {
             return false;
         }
-        String clientId = authenticationSession.getClient().getClientId();
-        List<String> skipClients = IpAuthenticatorUtil.getSkipClients(config);
-        if (skipClients.isEmpty()) {
+        return shouldSkipIpVerificationForClient(context,
+                IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig()));
+    }
+
+    private static boolean shouldSkipIpVerificationForClient(AuthenticationFlowContext context,
+            IpAuthenticatorConfig config) {
+        AuthenticationSessionModel authenticationSession = context.getAuthenticationSession();
+        if (authenticationSession == null || authenticationSession.getClient() == null) {
             return false;
         }
+        return config.isSkipClient(authenticationSession.getClient().getClientId());
+    }
 
-        logger.debugf("skip clients: " + config.get(IpAuthorizeConstants.SKIP_IP_AUTHORIZE_CLIENT));
-        logger.debugf("client id: " + clientId);
+    /**
+     * Positive authentication decision.
+     */
+    static final class Decision {
 
-        for (String skipClient : skipClients) {
-            if (skipClient.equalsIgnoreCase(clientId)) {
-                return true;
-            }
-        }
+        private final ConditionalActionMode outcome;
 
-        return false;
-    }
+        private final long validUntil;
+
+        Decision(ConditionalActionMode outcome, long validUntil) {
+            this.outcome = outcome;
+            this.validUntil = validUntil;
+        }
 
-    private static List<String> getSkipClients(Map<String, String> config) {
-        String skipClients = config.get(IpAuthorizeConstants.SKIP_IP_AUTHORIZE_CLIENT);
-        if (skipClients == null) {
-            return new ArrayList<>();
+        /**
+         * @return {@link ConditionalActionMode#SKIP} for success, {@link ConditionalActionMode#ATTEMPTED} for attempted
+         */
+        ConditionalActionMode getOutcome() {
+            return this.outcome;
         }
 
-        return Arrays.stream(skipClients.split(","))
-                .map(String::trim)
-                .collect(Collectors.toList());
+        /**
+         * @return epoch second until which the decision holds
+         */
+        long getValidUntil() {
+            return this.validUntil;
+        }
     }
 }
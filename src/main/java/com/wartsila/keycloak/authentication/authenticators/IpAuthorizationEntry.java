@@ -20,43 +20,174 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
+import com.wartsila.support.IpAddress;
 import com.wartsila.support.IpAddressMatcher;
 
+/**
+ * Verified IP address with expiry. Stored as {@code ip;epochSeconds} or {@code ip;epochSeconds;lastMatchedEpochSeconds}
+ * once the entry has been used for login. Entries written in the older {@code ip;yyyy-MM-dd'T'HH:mm:ss} format and
+ * legacy entries without expiry are still read.
+ * <p>
+ * Earlier versions only read the older format and cannot parse entries written by this one, so all nodes of a cluster
+ * must be upgraded together rather than one at a time.
+ */
 public class IpAuthorizationEntry {
 
-    private static final String SEPARATOR = ";";
+    private static final char SEPARATOR = ';';
 
     private static final ZoneId ZONE = ZoneId.of("GMT");
 
+    /**
+     * Format of expiry in entries written before epoch seconds were used.
+     */
     public static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss")
             .withZone(ZONE);
 
+    private static final int ISO_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+
+    private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    /**
+     * Parses a stored entry.
+     *
+     * @param text stored entry
+     * @return parsed entry
+     * @throws IllegalArgumentException if expiry could not be parsed
+     */
     public static IpAuthorizationEntry parse(String text) {
         IpAuthorizationEntry entry = new IpAuthorizationEntry();
-        String[] parts = text.split(Pattern.quote(SEPARATOR));
-        entry.setIpAddress(parts[0]);
-
-        if (parts.length > 1) {
-            entry.setValidUntil(FORMATTER.parse(parts[1], ZonedDateTime::from));
-        } else {
+        int separator = text.indexOf(SEPARATOR);
+        if (separator < 0) {
             // Legacy
-            entry.setValidUntil(Instant.ofEpochMilli(0).atZone(ZONE));
+            entry.setIpAddress(text);
+            entry.setValidUntilEpochSecond(0L);
+        } else {
+            entry.setIpAddress(text.substring(0, separator));
+            int lastMatchedSeparator = text.indexOf(SEPARATOR, separator + 1);
+            if (lastMatchedSeparator < 0) {
+                entry.setValidUntilEpochSecond(parseExpiry(text, separator + 1, text.length()));
+            } else {
+                entry.setValidUntilEpochSecond(parseEpochSecond(text, separator + 1, lastMatchedSeparator));
+                entry.setLastMatchedEpochSecond(
+                        parseEpochSecond(text, lastMatchedSeparator + 1, text.length()));
+                if (entry.getValidUntilEpochSecond() < 0 || entry.getLastMatchedEpochSecond() < 0) {
+                    throw new IllegalArgumentException("Invalid verified IP address entry " + text);
+                }
+            }
         }
         return entry;
     }
 
+    /**
+     * Checks if entry is stored in the current {@code ip;epochSeconds} format.
+     *
+     * @param text stored entry
+     * @return false if entry should be rewritten
+     */
+    public static boolean isCurrentFormat(String text) {
+        int separator = text.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return false;
+        }
+        int lastMatchedSeparator = text.indexOf(SEPARATOR, separator + 1);
+        if (lastMatchedSeparator < 0) {
+            return parseEpochSecond(text, separator + 1, text.length()) >= 0;
+        }
+        return parseEpochSecond(text, separator + 1, lastMatchedSeparator) >= 0
+                && parseEpochSecond(text, lastMatchedSeparator + 1, text.length()) >= 0;
+    }
+
+    private static long parseExpiry(String text, int from, int to) {
+        long epochSecond = parseEpochSecond(text, from, to);
+        if (epochSecond < 0) {
+            epochSecond = parseIsoDateTime(text, from);
+        }
+        if (epochSecond < 0) {
+            throw new IllegalArgumentException("Invalid expiry in verified IP address entry " + text);
+        }
+        return epochSecond;
+    }
+
+    private static long parseEpochSecond(String text, int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1L;
+        }
+        long value = 0L;
+        for (int i = from; i < to; i++) {
+            char ch = text.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1L;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Fixed-width parser for {@code yyyy-MM-dd'T'HH:mm:ss} in GMT.
+     *
+     * @return epoch seconds or -1 if text is not in the expected format
+     */
+    private static long parseIsoDateTime(String text, int from) {
+        if (text.length() - from != ISO_LENGTH || text.charAt(from + 4) != '-' || text.charAt(from + 7) != '-'
+                || text.charAt(from + 10) != 'T' || text.charAt(from + 13) != ':' || text.charAt(from + 16) != ':') {
+            return -1L;
+        }
+        int year = digits(text, from, 4);
+        int month = digits(text, from + 5, 2);
+        int day = digits(text, from + 8, 2);
+        int hour = digits(text, from + 11, 2);
+        int minute = digits(text, from + 14, 2);
+        int second = digits(text, from + 17, 2);
+        if (year < 1970 || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || hour > 23
+                || minute > 59 || second > 59 || (month == 2 && day == 29 && !isLeapYear(year))) {
+            return -1L;
+        }
+        return daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second;
+    }
+
+    private static int digits(String text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char ch = text.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468L;
+    }
+
     public static IpAuthorizationEntry from(IpAuthorizeActionToken token) {
         IpAuthorizationEntry entry = new IpAuthorizationEntry();
         entry.setIpAddress(token.getIpAddress());
-        entry.setValidUntil(Instant.ofEpochMilli(token.getAuthorizationExpires()).atZone(ZONE));
+        entry.setValidUntilEpochSecond(TimeUnit.MILLISECONDS.toSeconds(token.getAuthorizationExpires()));
         return entry;
     }
 
     private String ipAddress;
 
-    private ZonedDateTime validUntil;
+    private long validUntil;
+
+    private long lastMatched;
 
     /**
      * Format this entry for storage.
@@ -64,19 +195,30 @@ public class IpAuthorizationEntry {
      * @return formatted value.
      */
     public String format() {
-        return this.ipAddress + SEPARATOR + FORMATTER.format(this.validUntil);
+        if (this.lastMatched > 0) {
+            return this.ipAddress + SEPARATOR + this.validUntil + SEPARATOR + this.lastMatched;
+        }
+        return this.ipAddress + SEPARATOR + this.validUntil;
     }
 
     public boolean authorize(String ipAddress) {
+        return authorize(IpAddress.parse(ipAddress));
+    }
+
+    public boolean authorize(IpAddress ipAddress) {
         return isNonExpired() && matches(ipAddress);
     }
 
     public boolean matches(String ipAddress) {
+        return matches(IpAddress.parse(ipAddress));
+    }
+
+    public boolean matches(IpAddress ipAddress) {
         return new IpAddressMatcher(this.ipAddress).matches(ipAddress);
     }
 
     public boolean isNonExpired() {
-        return this.validUntil != null && this.validUntil.toInstant().isAfter(Instant.now());
+        return this.validUntil > TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
     }
 
     public String getIpAddress() {
@@ -88,13 +230,32 @@ public class IpAuthorizationEntry {
     }
 
     public ZonedDateTime getValidUntil() {
-        return this.validUntil;
+        return Instant.ofEpochSecond(this.validUntil).atZone(ZONE);
     }
 
     public void setValidUntil(ZonedDateTime validUntil) {
+        this.validUntil = validUntil == null ? 0L : validUntil.toEpochSecond();
+    }
+
+    public long getValidUntilEpochSecond() {
+        return this.validUntil;
+    }
+
+    public void setValidUntilEpochSecond(long validUntil) {
         this.validUntil = validUntil;
     }
 
+    /**
+     * @return epoch second when this entry was last used for login, 0 if never
+     */
+    public long getLastMatchedEpochSecond() {
+        return this.lastMatched;
+    }
+
+    public void setLastMatchedEpochSecond(long lastMatched) {
+        this.lastMatched = lastMatched;
+    }
+
     @Override
     public String toString() {
         return format();
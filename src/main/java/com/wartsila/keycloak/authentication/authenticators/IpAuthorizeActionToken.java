@@ -38,6 +38,9 @@ public class IpAuthorizeActionToken extends DefaultActionToken {
     @JsonProperty(value = "ex")
     private long authorizationExpires;
 
+    @JsonProperty(value = "mx")
+    private int maxEntries;
+
     public IpAuthorizeActionToken(String userId, int absoluteExpirationInSecs) {
         super(userId, TOKEN_TYPE, absoluteExpirationInSecs, null);
     }
@@ -79,4 +82,12 @@ public class IpAuthorizeActionToken extends DefaultActionToken {
     public void setAuthorizationExpires(long expires) {
         this.authorizationExpires = expires;
     }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
 }
\ No newline at end of file
@@ -16,9 +16,6 @@
  */
 package com.wartsila.keycloak.authentication.authenticators;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import javax.ws.rs.core.Response;
 
 import org.jboss.logging.Logger;
@@ -52,7 +49,6 @@ public class IpAuthorizeActionTokenHandler extends AbstractActionTokenHander<IpA
     @Override
     public Response handleToken(IpAuthorizeActionToken token, ActionTokenContext<IpAuthorizeActionToken> tokenContext) {
         UserModel user = tokenContext.getAuthenticationSession().getAuthenticatedUser();
-
         String email = token.getEmail().toLowerCase();
         if (!email.equalsIgnoreCase(user.getEmail())) {
             Response response = tokenContext.getSession().getProvider(LoginFormsProvider.class)
@@ -60,13 +56,36 @@ public class IpAuthorizeActionTokenHandler extends AbstractActionTokenHander<IpA
             return response;
         }
 
-        AuthenticationSessionModel authSession = tokenContext.getAuthenticationSession();
+        // The email is checked on every use, only storing the verified IP is skipped for a used token
+        if (ConsumedActionTokens.isConsumed(token)) {
+            logger.debugf("%s -- IP verification token for %s already used", user.getUsername(), token.getIpAddress());
+            return verified(token, tokenContext);
+        }
+
+        RealmModel realm = tokenContext.getRealm();
+        if (ConsumedActionTokens.claim(token)) {
+            try {
+                VerifiedIpAddresses.store(tokenContext.getSession()).addVerifiedIp(realm, user,
+                        IpAuthorizationEntry.from(token), token.getMaxEntries());
+            } catch (RuntimeException e) {
+                ConsumedActionTokens.release(token);
+                throw e;
+            }
+            ConsumedActionTokens.publish(tokenContext.getSession(), token);
+            PendingVerifications.remove(tokenContext.getSession(),
+                    PendingVerifications.key(realm.getId(), user.getId(), token.getIpAddress()));
+        }
 
-        List<String> list = new ArrayList<>(user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS));
-        list.add(IpAuthorizationEntry.from(token).format());
-        user.setAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS, list);
+        return verified(token, tokenContext);
+    }
 
+    /**
+     * Shows the success page, or continues the login flow if the token was used in the browser that started it.
+     */
+    private Response verified(IpAuthorizeActionToken token, ActionTokenContext<IpAuthorizeActionToken> tokenContext) {
+        AuthenticationSessionModel authSession = tokenContext.getAuthenticationSession();
         RealmModel realm = tokenContext.getRealm();
+
         if (tokenContext.isAuthenticationSessionFresh()) {
             AuthenticationSessionManager asm = new AuthenticationSessionManager(tokenContext.getSession());
             asm.removeAuthenticationSession(realm, authSession, true);
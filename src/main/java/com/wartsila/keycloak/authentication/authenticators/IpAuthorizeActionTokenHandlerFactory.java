@@ -36,7 +36,12 @@ public class IpAuthorizeActionTokenHandlerFactory implements ActionTokenHandlerF
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // NOOP
+        KeycloakSession clusterSession = factory.create();
+        try {
+            ConsumedActionTokens.register(clusterSession);
+        } finally {
+            clusterSession.close();
+        }
     }
 
     @Override
@@ -38,8 +38,16 @@ public abstract class IpAuthorizeConstants {
 
     public static final String IP_AUTHORIZE_EXPIRES_SECONDS = "authorizationExpiresSeconds";
 
+    public static final String IP_AUTHORIZE_MAX_ENTRIES = "maxVerifiedIpAddresses";
+
+    public static final String TRUSTED_PROXIES = "trustedProxies";
+
+    public static final String CLIENT_ALLOWED_NETWORKS = "clientAllowedNetworks";
+
     public static final String IP_VERIFICATION_EMAIL_ALREADY_SENT_MESSAGE = "ipVerificationEmailAlreadySent";
 
+    public static final String IP_VERIFICATION_EMAIL_RATE_LIMITED_MESSAGE = "ipVerificationEmailRateLimited";
+
     public static final String IP_VERIFICATION_INVALID_NONCE_MESSAGE = "ipVerificationInvalidNonceMessage";
 
     public static final String IP_VERIFICATION_INVALID_EMAIL_MESSAGE = "ipVerificiationFailedEmailMessage";
@@ -16,14 +16,24 @@
  */
 package com.wartsila.keycloak.authentication.authenticators;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.spi.HttpRequest;
+import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.models.KeycloakSession;
 
+import com.wartsila.support.ForwardedHeaders;
+import com.wartsila.support.IpAddress;
+import com.wartsila.support.IpPrefixSet;
+
 public class IpUtil {
 
     private static final Logger logger = Logger.getLogger(IpUtil.class);
 
+    private static final String CLIENT_IPS_ATTRIBUTE = ClientIp.class.getName();
+
     /**
      * Extracts real IP from request (using X-Forwarded-For header). Falls back to remote address defined
      * in ClientConnection.
@@ -33,23 +43,93 @@ public class IpUtil {
      * @return Users IP address
      */
     public static String getIp(HttpRequest request, KeycloakSession session) {
-        String address = getIpFromXff(request);
-        if (address == null) {
-            // fallback to remote address
-            address = session.getContext().getConnection().getRemoteAddr();
+        return resolve(request, session).getText();
+    }
+
+    /**
+     * Resolves the client IP of the request as in {@link #getIp(HttpRequest, KeycloakSession)}, without trusted
+     * proxies.
+     *
+     * @param request HTTP request
+     * @param session Keycloak session
+     * @return resolved client IP
+     */
+    public static ClientIp resolve(HttpRequest request, KeycloakSession session) {
+        return resolve(request, session, null);
+    }
+
+    /**
+     * Resolves the client IP of the request, taking trusted proxies of the authenticator configuration into account.
+     *
+     * @param context authentication flow context
+     * @return resolved client IP
+     * @see #resolve(HttpRequest, KeycloakSession, IpPrefixSet)
+     */
+    public static ClientIp resolve(AuthenticationFlowContext context) {
+        return resolve(context.getHttpRequest(), context.getSession(),
+                IpAuthenticatorConfig.get(context.getRealm(), context.getAuthenticatorConfig()).getTrustedProxies());
+    }
+
+    /**
+     * Resolves the client IP of the request. Without trusted proxies the left-most X-Forwarded-For address is used.
+     * With trusted proxies, headers are only used if the request comes from a trusted proxy. The client IP is then the
+     * first untrusted hop from the right in the Forwarded header, or in X-Forwarded-For if there is no Forwarded
+     * header. The result is kept as a session attribute for each set of trusted proxies, so headers are parsed only
+     * once per request and configuration, and an authenticator without trusted proxies never hands its left-most
+     * X-Forwarded-For address to one that has them.
+     *
+     * @param request HTTP request
+     * @param session Keycloak session
+     * @param trustedProxies trusted proxies, may be null
+     * @return resolved client IP
+     */
+    public static ClientIp resolve(HttpRequest request, KeycloakSession session, IpPrefixSet trustedProxies) {
+        @SuppressWarnings("unchecked")
+        Map<IpPrefixSet, ClientIp> clientIps = (Map<IpPrefixSet, ClientIp>) session.getAttribute(CLIENT_IPS_ATTRIBUTE);
+        if (clientIps == null) {
+            // keyed by identity, compiled configurations share one trusted proxy set per configuration
+            clientIps = new IdentityHashMap<>(4);
+            session.setAttribute(CLIENT_IPS_ATTRIBUTE, clientIps);
+        }
+        ClientIp clientIp = clientIps.get(trustedProxies);
+        if (clientIp == null) {
+            String remoteAddress = session.getContext().getConnection().getRemoteAddr();
+            String address = trustedProxies == null ? getIpFromXff(request)
+                    : getIpBehindTrustedProxies(request, remoteAddress, trustedProxies);
+            boolean clientSupplied = trustedProxies == null && address != null;
+            if (address == null) {
+                // fallback to remote address
+                address = remoteAddress;
+            }
+            logger.debugf("Client IP address interpreted as %s", address);
+            clientIp = new ClientIp(address, remoteAddress, clientSupplied);
+            clientIps.put(trustedProxies, clientIp);
+        }
+        return clientIp;
+    }
+
+    private static String getIpBehindTrustedProxies(HttpRequest request, String remoteAddress,
+            IpPrefixSet trustedProxies) {
+        IpAddress remote = IpAddress.tryParse(remoteAddress);
+        if (remote == null || !trustedProxies.contains(remote)) {
+            return null;
+        }
+        String forwarded = request.getHttpHeaders().getHeaderString("Forwarded");
+        if (forwarded != null) {
+            return ForwardedHeaders.clientFromForwarded(forwarded, trustedProxies);
         }
-        logger.infof("Client IP address interpreted as %s", address);
-        return address;
+        return ForwardedHeaders.clientFromXForwardedFor(request.getHttpHeaders().getHeaderString("X-Forwarded-For"),
+                trustedProxies);
     }
 
     private static String getIpFromXff(HttpRequest request) {
         String xff = request.getHttpHeaders().getHeaderString("X-Forwarded-For");
-        logger.infof("X-Forwarded-For: %s", xff);
+        logger.debugf("X-Forwarded-For: %s", xff);
 
         if (xff != null && xff.indexOf(",") > 0) {
             // if there's multiple IP's, the first one is the client IP, the rest are proxies.
             String onlyClientIp = xff.substring(0, xff.indexOf(",")).trim();
-            logger.infof("From X-Forwarded-For, interpreted %s as client IP", onlyClientIp);
+            logger.debugf("From X-Forwarded-For, interpreted %s as client IP", onlyClientIp);
             return onlyClientIp;
         }
         return xff;
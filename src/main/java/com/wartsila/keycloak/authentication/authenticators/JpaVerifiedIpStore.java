@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import com.wartsila.support.IpAddress;
+import com.wartsila.support.IpAddressMatcher;
+
+/**
+ * Stores verified IP entries as rows of table {@code IP_VERIFICATION}, see {@link VerifiedIpEntity}. Compiled entries
+ * are cached per user in the {@link VerifiedIpCache} and invalidated on all cluster nodes when written. Entries still
+ * stored in the user attribute {@link IpAuthorizeConstants#VERIFIED_IP_ADDRESS} are copied to the table by
+ * {@link VerifiedIpAttributeMigration}; until that has finished for a realm, the attribute is read as well.
+ */
+public class JpaVerifiedIpStore implements VerifiedIpStore {
+
+    private static final Logger logger = Logger.getLogger(JpaVerifiedIpStore.class);
+
+    private static final Comparator<VerifiedIpEntity> LEAST_RECENTLY_USED = Comparator
+            .comparingLong(VerifiedIpEntity::getLastUsed)
+            .thenComparingLong(VerifiedIpEntity::getExpiresAt);
+
+    private final KeycloakSession session;
+
+    private final EntityManager em;
+
+    public JpaVerifiedIpStore(KeycloakSession session) {
+        this.session = session;
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    @Override
+    public VerifiedIpSet getVerifiedIps(RealmModel realm, UserModel user) {
+        boolean migrated = VerifiedIpAttributeMigration.isMigrated(realm);
+        VerifiedIpCache cache = VerifiedIpAddresses.getCache();
+        if (migrated) {
+            VerifiedIpSet cached = cache.get(realm.getId(), user.getId());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        long now = VerifiedIpAddresses.currentTimeSeconds();
+        List<VerifiedIpEntity> entities = this.em.createNamedQuery("findValidVerifiedIpsByUser", VerifiedIpEntity.class)
+                .setParameter("userId", user.getId())
+                .setParameter("now", now)
+                .getResultList();
+        VerifiedIpSet.Builder builder = new VerifiedIpSet.Builder();
+        for (VerifiedIpEntity entity : entities) {
+            builder.add(entity.getRange(), entity.getExpiresAt(), entity.getLastUsed(), entity.getId());
+        }
+        if (!migrated) {
+            addAttributeEntries(builder, user, now);
+            return builder.build();
+        }
+        VerifiedIpSet set = builder.build();
+        cache.put(realm.getId(), user.getId(), set);
+        return set;
+    }
+
+    /**
+     * Adds the unexpired entries still stored in the user attribute, without a key so that they are never updated.
+     */
+    private static void addAttributeEntries(VerifiedIpSet.Builder builder, UserModel user, long now) {
+        List<String> values = user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        if (values == null) {
+            return;
+        }
+        for (String value : values) {
+            try {
+                IpAuthorizationEntry entry = IpAuthorizationEntry.parse(value);
+                if (entry.getValidUntilEpochSecond() > now) {
+                    builder.add(entry.getIpAddress(), entry.getValidUntilEpochSecond(),
+                            entry.getLastMatchedEpochSecond(), null);
+                }
+            } catch (IllegalArgumentException e) {
+                // Ignored, as by the attribute store
+            }
+        }
+    }
+
+    /**
+     * Copies entries from the user attribute to the table. The attribute is kept unless {@code remove} is set, so
+     * that the upgrade can be reverted.
+     *
+     * @param realm realm
+     * @param user user
+     * @param remove true to remove the attribute once copied
+     */
+    void copyAttribute(RealmModel realm, UserModel user, boolean remove) {
+        List<String> values = user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        logger.debugf("Copying verified IP address entries of user %s to table", user.getUsername());
+        for (String value : VerifiedIpAddresses.prune(values, VerifiedIpAddresses.pruneExpiredBefore())) {
+            try {
+                IpAuthorizationEntry entry = IpAuthorizationEntry.parse(value);
+                add(realm, user, entry, find(user), 0);
+            } catch (IllegalArgumentException e) {
+                logger.warnf("Skipping invalid verified IP address entry \"%s\": %s", value, e.getMessage());
+            }
+        }
+        if (remove) {
+            user.removeAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        }
+        this.em.flush();
+        VerifiedIpAddresses.invalidate(this.session, realm.getId(), user.getId());
+    }
+
+    @Override
+    public void addVerifiedIp(RealmModel realm, UserModel user, IpAuthorizationEntry entry, int maxEntries) {
+        entry.setLastMatchedEpochSecond(VerifiedIpAddresses.currentTimeSeconds());
+        add(realm, user, entry, find(user), maxEntries);
+        VerifiedIpAddresses.invalidate(this.session, realm.getId(), user.getId());
+    }
+
+    /**
+     * Adds or extends the entry of a network. Expired entries are removed at the same time and, if the user would
+     * have more than {@code maxEntries} entries, the least recently used ones are evicted.
+     *
+     * @param existing current entries of the user
+     */
+    private void add(RealmModel realm, UserModel user, IpAuthorizationEntry entry, List<VerifiedIpEntity> existing,
+            int maxEntries) {
+        IpAddressMatcher range = new IpAddressMatcher(entry.getIpAddress());
+        String network = (range.isIpv6() ? IpAddress.ipv6(range.getHighNetwork(), range.getLowNetwork())
+                : IpAddress.ipv4(range.getIpv4Network())).toString();
+        int prefixLength = range.getMaskBits() >= 0 ? range.getMaskBits() : range.isIpv6() ? 128 : 32;
+
+        long expiredBefore = VerifiedIpAddresses.pruneExpiredBefore();
+        VerifiedIpEntity added = null;
+        List<VerifiedIpEntity> remaining = new ArrayList<>(existing.size() + 1);
+        for (VerifiedIpEntity entity : existing) {
+            if (entity.getNetwork().equals(network) && entity.getPrefixLength() == prefixLength) {
+                entity.setExpiresAt(Math.max(entity.getExpiresAt(), entry.getValidUntilEpochSecond()));
+                entity.setLastUsed(Math.max(entity.getLastUsed(), entry.getLastMatchedEpochSecond()));
+                added = entity;
+            } else if (entity.getExpiresAt() <= expiredBefore) {
+                this.em.remove(entity);
+            } else {
+                remaining.add(entity);
+            }
+        }
+
+        if (added == null) {
+            added = new VerifiedIpEntity();
+            added.setId(KeycloakModelUtils.generateId());
+            added.setRealmId(realm.getId());
+            added.setUserId(user.getId());
+            added.setNetwork(network);
+            added.setPrefixLength(prefixLength);
+            added.setExpiresAt(entry.getValidUntilEpochSecond());
+            added.setLastUsed(entry.getLastMatchedEpochSecond());
+            this.em.persist(added);
+        }
+
+        if (maxEntries > 0 && remaining.size() + 1 > maxEntries) {
+            remaining.sort(LEAST_RECENTLY_USED);
+            for (int i = 0; i < remaining.size() + 1 - maxEntries; i++) {
+                this.em.remove(remaining.get(i));
+            }
+        }
+    }
+
+    private List<VerifiedIpEntity> find(UserModel user) {
+        return this.em.createNamedQuery("findVerifiedIpsByUser", VerifiedIpEntity.class)
+                .setParameter("userId", user.getId())
+                .getResultList();
+    }
+
+    /**
+     * Records that an entry was used for login. The row is only updated if the previously recorded time is older than
+     * {@link VerifiedIpAddresses#LAST_MATCHED_UPDATE_INTERVAL_SECONDS}.
+     */
+    @Override
+    public void matched(RealmModel realm, UserModel user, VerifiedIpSet verified, int index, long now) {
+        String key = verified.getKey(index);
+        if (key == null
+                || now - verified.getLastMatched(index) < VerifiedIpAddresses.LAST_MATCHED_UPDATE_INTERVAL_SECONDS) {
+            return;
+        }
+        VerifiedIpEntity entity = this.em.find(VerifiedIpEntity.class, key);
+        if (entity != null) {
+            entity.setLastUsed(now);
+            VerifiedIpAddresses.invalidate(this.session, realm.getId(), user.getId());
+        }
+    }
+
+    /**
+     * Removes all entries of a user, called when the user is removed.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     */
+    void removeUser(String realmId, String userId) {
+        this.em.createNamedQuery("deleteVerifiedIpsByUser")
+                .setParameter("userId", userId)
+                .executeUpdate();
+        VerifiedIpAddresses.invalidate(this.session, realmId, userId);
+    }
+
+    /**
+     * Removes all entries of a realm, called when the realm is removed.
+     *
+     * @param realmId realm id
+     */
+    void removeRealm(String realmId) {
+        this.em.createNamedQuery("deleteVerifiedIpsByRealm")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes at most {@code max} expired rows of the realm. Deleted rows no longer match, so {@code first} is ignored
+     * and each call removes the next page.
+     *
+     * @return number of rows deleted
+     */
+    @Override
+    public int removeExpired(RealmModel realm, int first, int max, long expiredBefore,
+            VerifiedIpSweeper.Result result) {
+        List<String> ids = this.em.createNamedQuery("findExpiredVerifiedIpIdsByRealm", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("expiredBefore", expiredBefore)
+                .setMaxResults(max)
+                .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int removed = this.em.createNamedQuery("deleteVerifiedIpsByIds")
+                .setParameter("ids", ids)
+                .executeUpdate();
+        result.reclaimed(removed, 0L);
+        return removed;
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Creates {@link JpaVerifiedIpStore}s. Removes the rows of removed users and realms, and, when this is the default
+ * store, starts the {@link VerifiedIpAttributeMigration} unless disabled with {@code migrateUserAttributes}.
+ */
+public class JpaVerifiedIpStoreFactory implements VerifiedIpStoreFactory {
+
+    public static final String PROVIDER_ID = "jpa";
+
+    public static final int MIGRATION_BATCH_SIZE_DEFAULT_VALUE = 100;
+
+    private boolean migrate;
+
+    private VerifiedIpAttributeMigration migration;
+
+    @Override
+    public VerifiedIpStore create(KeycloakSession session) {
+        return new JpaVerifiedIpStore(session);
+    }
+
+    @Override
+    public void init(Scope config) {
+        this.migrate = config.getBoolean("migrateUserAttributes", true);
+        this.migration = new VerifiedIpAttributeMigration(
+                config.getInt("migrationBatchSize", MIGRATION_BATCH_SIZE_DEFAULT_VALUE),
+                config.getBoolean("removeMigratedUserAttributes", false));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent) {
+                UserModel.UserRemovedEvent removed = (UserModel.UserRemovedEvent) event;
+                new JpaVerifiedIpStore(removed.getKeycloakSession()).removeUser(removed.getRealm().getId(),
+                        removed.getUser().getId());
+            } else if (event instanceof RealmModel.RealmRemovedEvent) {
+                RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+                new JpaVerifiedIpStore(removed.getKeycloakSession()).removeRealm(removed.getRealm().getId());
+            }
+        });
+
+        KeycloakSession session = factory.create();
+        try {
+            VerifiedIpAddresses.registerInvalidations(session);
+        } finally {
+            session.close();
+        }
+
+        ProviderFactory<VerifiedIpStore> defaultFactory = factory.getProviderFactory(VerifiedIpStore.class);
+        if (!this.migrate || (defaultFactory != null && defaultFactory != this)) {
+            return;
+        }
+        this.migration.start(factory);
+    }
+
+    @Override
+    public void close() {
+        if (this.migration != null) {
+            this.migration.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Verification email that has been sent for a user and client IP address and whose action token is still valid. Sent
+ * to the other cluster nodes so that they reuse it instead of sending another email.
+ */
+public final class PendingVerification implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    private final String email;
+
+    private final String nonce;
+
+    private final String manualNonce;
+
+    private final String entry;
+
+    private final int expiresAt;
+
+    private final boolean removed;
+
+    /**
+     * @param key key from {@link PendingVerifications#key(String, String, String)}
+     * @param email address the email was sent to
+     * @param nonce action verification nonce of the token in the email
+     * @param manualNonce manually entered verification code in the email
+     * @param entry formatted {@link IpAuthorizationEntry} to add on verification
+     * @param expiresAt epoch second when the token expires
+     */
+    public PendingVerification(String key, String email, String nonce, String manualNonce, String entry,
+            int expiresAt) {
+        this(key, email, nonce, manualNonce, entry, expiresAt, false);
+    }
+
+    private PendingVerification(String key, String email, String nonce, String manualNonce, String entry,
+            int expiresAt, boolean removed) {
+        this.key = key;
+        this.email = email;
+        this.nonce = nonce;
+        this.manualNonce = manualNonce;
+        this.entry = entry;
+        this.expiresAt = expiresAt;
+        this.removed = removed;
+    }
+
+    static PendingVerification removal(String key) {
+        return new PendingVerification(key, null, null, null, null, 0, true);
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public String getEmail() {
+        return this.email;
+    }
+
+    public String getNonce() {
+        return this.nonce;
+    }
+
+    public String getManualNonce() {
+        return this.manualNonce;
+    }
+
+    public String getEntry() {
+        return this.entry;
+    }
+
+    public int getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    boolean isRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * @param secret secret entered by the user
+     * @return true if secret is the nonce or the manual nonce of this verification
+     */
+    public boolean matches(String secret) {
+        return secret.equals(this.nonce) || secret.equals(this.manualNonce);
+    }
+
+    @Override
+    public String toString() {
+        return "PendingVerification [key=" + this.key + ", expiresAt=" + this.expiresAt + ", removed=" + this.removed
+                + "]";
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Single-flight of verification emails per realm, user and client IP address. Sending is serialized across the cluster
+ * with {@link ClusterProvider#executeIfNotExecuted(String, int, Callable)}, and sent verifications are broadcast to all
+ * nodes so that concurrent logins of the same user from the same address reuse the pending token and manual nonce
+ * instead of sending another email.
+ */
+public final class PendingVerifications {
+
+    public static final String CLUSTER_TASK_KEY = "ip-authenticator-pending-verification";
+
+    /**
+     * Pending verifications expiring sooner than this are not reused, so that the user has time to act on the email.
+     */
+    public static final int MIN_REMAINING_SECONDS = 60;
+
+    /**
+     * How long the cluster-wide lock for sending one verification email is held at most.
+     */
+    public static final int SEND_TIMEOUT_SECONDS = 30;
+
+    private static final int CLEANUP_THRESHOLD = 1024;
+
+    private static final Logger logger = Logger.getLogger(PendingVerifications.class);
+
+    private static final ConcurrentMap<String, PendingVerification> pending = new ConcurrentHashMap<>();
+
+    private static volatile int nextCleanup = CLEANUP_THRESHOLD;
+
+    private PendingVerifications() {
+        // utility
+    }
+
+    /**
+     * Starts receiving pending verifications from the other cluster nodes.
+     *
+     * @param session session
+     */
+    static void register(KeycloakSession session) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            logger.info("No cluster provider, pending verification emails are not shared between nodes");
+            return;
+        }
+        cluster.registerListener(CLUSTER_TASK_KEY, event -> {
+            if (event instanceof PendingVerification) {
+                apply((PendingVerification) event);
+            }
+        });
+    }
+
+    public static String key(String realmId, String userId, String ipAddress) {
+        return realmId + '/' + userId + '/' + ipAddress;
+    }
+
+    /**
+     * Returns a pending verification that was sent to email and is valid for at least {@link #MIN_REMAINING_SECONDS}.
+     *
+     * @param key key from {@link #key(String, String, String)}
+     * @param email current email address of the user
+     * @return pending verification or null
+     */
+    public static PendingVerification get(String key, String email) {
+        PendingVerification verification = pending.get(key);
+        if (verification == null || !verification.getEmail().equals(email)
+                || verification.getExpiresAt() - MIN_REMAINING_SECONDS <= Time.currentTime()) {
+            return null;
+        }
+        return verification;
+    }
+
+    /**
+     * Returns a pending verification that has not expired and whose nonce or manual nonce is secret.
+     *
+     * @param key key from {@link #key(String, String, String)}
+     * @param secret secret entered by the user
+     * @return pending verification or null
+     */
+    public static PendingVerification find(String key, String secret) {
+        PendingVerification verification = pending.get(key);
+        if (verification == null || verification.getExpiresAt() <= Time.currentTime()
+                || !verification.matches(secret)) {
+            return null;
+        }
+        return verification;
+    }
+
+    /**
+     * Runs send unless another thread in the cluster is already sending a verification for the same key. A
+     * verification returned by send is published to all nodes.
+     *
+     * @param session session
+     * @param key key from {@link #key(String, String, String)}
+     * @param send sends the email and returns the verification, or null if sending failed
+     * @return result of send, or not executed if another thread was sending
+     */
+    public static ExecutionResult<PendingVerification> send(KeycloakSession session, String key,
+            Supplier<PendingVerification> send) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        ExecutionResult<PendingVerification> result;
+        if (cluster == null) {
+            result = ExecutionResult.executed(send.get());
+        } else {
+            result = cluster.executeIfNotExecuted(CLUSTER_TASK_KEY + "::" + key, SEND_TIMEOUT_SECONDS, send::get);
+        }
+        if (result.isExecuted() && result.getResult() != null) {
+            publish(cluster, result.getResult());
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the pending verification of key on all nodes, after it has been used.
+     *
+     * @param session session
+     * @param key key from {@link #key(String, String, String)}
+     */
+    public static void remove(KeycloakSession session, String key) {
+        if (pending.remove(key) != null) {
+            publish(session.getProvider(ClusterProvider.class), PendingVerification.removal(key));
+        }
+    }
+
+    private static void publish(ClusterProvider cluster, PendingVerification verification) {
+        apply(verification);
+        if (cluster != null) {
+            cluster.notify(CLUSTER_TASK_KEY, verification, true);
+        }
+    }
+
+    private static void apply(PendingVerification verification) {
+        if (verification.isRemoved()) {
+            pending.remove(verification.getKey());
+            return;
+        }
+        pending.put(verification.getKey(), verification);
+        if (pending.size() > nextCleanup) {
+            int now = Time.currentTime();
+            for (Iterator<PendingVerification> i = pending.values().iterator(); i.hasNext();) {
+                if (i.next().getExpiresAt() <= now) {
+                    i.remove();
+                }
+            }
+            nextCleanup = Math.max(CLEANUP_THRESHOLD, pending.size() * 2);
+        }
+    }
+}
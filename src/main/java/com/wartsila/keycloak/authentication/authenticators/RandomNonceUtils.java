@@ -16,46 +16,104 @@
  */
 package com.wartsila.keycloak.authentication.authenticators;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Generates the manual verification codes sent in IP verification emails. Each code contains at least one character of
+ * each configured character class. Every thread has its own generator, so concurrent logins do not contend on a shared
+ * lock.
+ */
 public final class RandomNonceUtils {
     private RandomNonceUtils() {
         // utility
     }
 
-    private static final String UPPER_CHARACTERS = "ABCDEFGHJKLMNPQRSTUVWY";
-    private static final String NUMBER_CHARACTERS = "23456789";
+    public static final int DEFAULT_LENGTH = 4;
+
+    public static final String UPPER_CHARACTERS = "ABCDEFGHJKLMNPQRSTUVWY";
+    public static final String NUMBER_CHARACTERS = "23456789";
 
     /**
-     * List of characters to be used. only characters that don't look like each other.
+     * Per-thread generators. SHA1PRNG is preferred because the native generator of the platform may serialize all
+     * instances on one lock.
      */
-    private static final String PASSWORD_CHARACTERS = UPPER_CHARACTERS + NUMBER_CHARACTERS;
+    private static final ThreadLocal<SecureRandom> RND = ThreadLocal.withInitial(RandomNonceUtils::newRandom);
+
+    private static volatile Alphabet alphabet = new Alphabet(DEFAULT_LENGTH, UPPER_CHARACTERS, NUMBER_CHARACTERS);
 
-    private static final SecureRandom RND = new SecureRandom();
+    /**
+     * Sets the format of generated codes. Only characters that don't look like each other should be used.
+     *
+     * @param length number of characters in a code
+     * @param classes character classes, each code contains at least one character of every non-empty class
+     * @throws IllegalArgumentException if there are no characters or length is less than the number of classes
+     */
+    static void configure(int length, String... classes) {
+        alphabet = new Alphabet(length, classes);
+    }
 
     public static String makeManualNonce() {
-        int length = 4;
-        synchronized (RND) {
-            List<Character> array = new ArrayList<>();
-            // at least one of each character class
-            array.add(randomLetter(UPPER_CHARACTERS));
-            array.add(randomLetter(NUMBER_CHARACTERS));
-            // then randomly any character
-            for (int i = 2; i < length; i++) {
-                array.add(randomLetter(PASSWORD_CHARACTERS));
-            }
-            // finally shuffle the results so that forced character classes are randomly placed
-            Collections.shuffle(array, RND);
-            StringBuilder sb = new StringBuilder();
-            array.forEach(sb::append);
-            return sb.toString();
+        Alphabet a = alphabet;
+        SecureRandom rnd = RND.get();
+        char[] nonce = new char[a.length];
+        // at least one of each character class
+        int i = 0;
+        for (char[] characters : a.classes) {
+            nonce[i++] = characters[rnd.nextInt(characters.length)];
+        }
+        // then randomly any character
+        for (; i < nonce.length; i++) {
+            nonce[i] = a.all[rnd.nextInt(a.all.length)];
+        }
+        // finally shuffle the results so that forced character classes are randomly placed
+        for (i = nonce.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            char c = nonce[i];
+            nonce[i] = nonce[j];
+            nonce[j] = c;
+        }
+        return new String(nonce);
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
         }
     }
 
-    private static char randomLetter(String characters) {
-        return characters.charAt(RND.nextInt(characters.length()));
+    private static final class Alphabet {
+
+        private final int length;
+
+        private final char[][] classes;
+
+        private final char[] all;
+
+        Alphabet(int length, String... classes) {
+            StringBuilder all = new StringBuilder();
+            int count = 0;
+            char[][] chars = new char[classes.length][];
+            for (String characters : classes) {
+                String trimmed = characters == null ? "" : characters.replaceAll("\\s", "");
+                if (!trimmed.isEmpty()) {
+                    chars[count++] = trimmed.toCharArray();
+                    all.append(trimmed);
+                }
+            }
+            if (count == 0) {
+                throw new IllegalArgumentException("No characters for manual verification codes");
+            }
+            if (length < count) {
+                throw new IllegalArgumentException("Manual verification code length " + length
+                        + " is less than the number of character classes " + count);
+            }
+            this.length = length;
+            this.classes = Arrays.copyOf(chars, count);
+            this.all = all.toString().toCharArray();
+        }
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Stores verified IP entries in the multi-valued user attribute {@link IpAuthorizeConstants#VERIFIED_IP_ADDRESS}, one
+ * {@code ip;expiry;lastMatched} value per entry. Compiled entries are cached per user in a {@link VerifiedIpCache}.
+ */
+public class UserAttributeVerifiedIpStore implements VerifiedIpStore {
+
+    private static final Logger logger = Logger.getLogger(UserAttributeVerifiedIpStore.class);
+
+    private static final Comparator<IpAuthorizationEntry> LEAST_RECENTLY_MATCHED = Comparator
+            .comparingLong(IpAuthorizationEntry::getLastMatchedEpochSecond)
+            .thenComparingLong(IpAuthorizationEntry::getValidUntilEpochSecond);
+
+    private final KeycloakSession session;
+
+    public UserAttributeVerifiedIpStore(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public VerifiedIpSet getVerifiedIps(RealmModel realm, UserModel user) {
+        VerifiedIpCache cache = VerifiedIpAddresses.getCache();
+        List<String> values = user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        VerifiedIpSet set = cache.get(realm.getId(), user.getId(), values);
+        if (set == null) {
+            values = migrate(user, values);
+            set = VerifiedIpAddresses.compile(values);
+            cache.put(realm.getId(), user.getId(), values, set);
+        }
+        return set;
+    }
+
+    /**
+     * Rewrites the attribute if any entry is still in an older storage format.
+     *
+     * @param user user
+     * @param values current values of attribute
+     * @return values in current format
+     */
+    private static List<String> migrate(UserModel user, List<String> values) {
+        List<String> migrated = null;
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            if (IpAuthorizationEntry.isCurrentFormat(value)) {
+                continue;
+            }
+            String formatted;
+            try {
+                formatted = IpAuthorizationEntry.parse(value).format();
+            } catch (IllegalArgumentException e) {
+                // Leave as is, ignored when compiling
+                continue;
+            }
+            if (migrated == null) {
+                migrated = new ArrayList<>(values);
+            }
+            migrated.set(i, formatted);
+        }
+        if (migrated == null) {
+            return values;
+        }
+        logger.debugf("Migrating verified IP address entries of user %s", user.getUsername());
+        user.setAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS, migrated);
+        return migrated;
+    }
+
+    /**
+     * Records that an entry was used for login. The attribute is only rewritten if the previously recorded time is
+     * older than {@link VerifiedIpAddresses#LAST_MATCHED_UPDATE_INTERVAL_SECONDS}.
+     */
+    @Override
+    public void matched(RealmModel realm, UserModel user, VerifiedIpSet verified, int index, long now) {
+        if (now - verified.getLastMatched(index) < VerifiedIpAddresses.LAST_MATCHED_UPDATE_INTERVAL_SECONDS) {
+            return;
+        }
+        String address = verified.getKey(index);
+        List<String> values = user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        List<String> updated = new ArrayList<>(values.size());
+        for (String value : values) {
+            try {
+                IpAuthorizationEntry entry = IpAuthorizationEntry.parse(value);
+                if (entry.getIpAddress().equals(address)) {
+                    entry.setLastMatchedEpochSecond(now);
+                    value = entry.format();
+                }
+            } catch (IllegalArgumentException e) {
+                // Keep as is
+            }
+            updated.add(value);
+        }
+        write(realm, user, updated);
+    }
+
+    /**
+     * Adds a verified IP entry to a user. Expired entries are pruned at the same time, see
+     * {@link VerifiedIpAddresses#prune(List, long)}.
+     */
+    @Override
+    public void addVerifiedIp(RealmModel realm, UserModel user, IpAuthorizationEntry entry, int maxEntries) {
+        entry.setLastMatchedEpochSecond(VerifiedIpAddresses.currentTimeSeconds());
+
+        List<String> list = new ArrayList<>(user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS));
+        list.add(entry.format());
+        List<String> pruned = VerifiedIpAddresses.prune(list, VerifiedIpAddresses.pruneExpiredBefore());
+        if (maxEntries > 0 && pruned.size() > maxEntries) {
+            pruned = evict(pruned, maxEntries, entry.getIpAddress());
+        }
+        write(realm, user, pruned);
+    }
+
+    /**
+     * Evicts least recently matched entries until at most {@code maxEntries} remain. Entries that cannot be parsed are
+     * dropped first.
+     *
+     * @param values pruned entries, at most one per address
+     * @param maxEntries maximum number of entries to keep
+     * @param keep address that must not be evicted
+     * @return remaining entries
+     */
+    static List<String> evict(List<String> values, int maxEntries, String keep) {
+        List<IpAuthorizationEntry> entries = new ArrayList<>(values.size());
+        for (String value : values) {
+            try {
+                entries.add(IpAuthorizationEntry.parse(value));
+            } catch (IllegalArgumentException e) {
+                logger.debugf("Evicting invalid verified IP address entry \"%s\"", value);
+            }
+        }
+
+        List<IpAuthorizationEntry> candidates = new ArrayList<>(entries);
+        candidates.removeIf(entry -> entry.getIpAddress().equals(keep));
+        candidates.sort(LEAST_RECENTLY_MATCHED);
+        Set<String> evicted = new HashSet<>();
+        for (int i = 0; i < entries.size() - maxEntries && i < candidates.size(); i++) {
+            evicted.add(candidates.get(i).getIpAddress());
+        }
+
+        List<String> remaining = new ArrayList<>(maxEntries);
+        for (IpAuthorizationEntry entry : entries) {
+            if (!evicted.contains(entry.getIpAddress())) {
+                remaining.add(entry.format());
+            }
+        }
+        return remaining;
+    }
+
+    @Override
+    public int removeExpired(RealmModel realm, int first, int max, long expiredBefore,
+            VerifiedIpSweeper.Result result) {
+        List<UserModel> users = this.session.users().getUsers(realm, first, max, true);
+        for (UserModel user : users) {
+            removeExpired(realm, user, expiredBefore, result);
+        }
+        return users.size();
+    }
+
+    private static void removeExpired(RealmModel realm, UserModel user, long expiredBefore,
+            VerifiedIpSweeper.Result result) {
+        List<String> values = user.getAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        if (values == null || values.isEmpty()) {
+            result.userChecked(false);
+            return;
+        }
+        List<String> pruned = VerifiedIpAddresses.prune(values, expiredBefore);
+        if (pruned.equals(values)) {
+            result.userChecked(false);
+            return;
+        }
+        write(realm, user, pruned);
+        result.userChecked(true);
+        result.reclaimed(values.size() - pruned.size(), length(values) - length(pruned));
+    }
+
+    private static long length(List<String> values) {
+        long length = 0L;
+        for (String value : values) {
+            length += value.length();
+        }
+        return length;
+    }
+
+    /**
+     * Replaces the verified IP entries of a user.
+     *
+     * @param realm realm
+     * @param user user
+     * @param values entries to store, attribute is removed if empty
+     */
+    private static void write(RealmModel realm, UserModel user, List<String> values) {
+        if (values.isEmpty()) {
+            user.removeAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS);
+        } else {
+            user.setAttribute(IpAuthorizeConstants.VERIFIED_IP_ADDRESS, values);
+        }
+        VerifiedIpAddresses.getCache().invalidate(realm.getId(), user.getId());
+        DirectGrantDecisions.get().invalidate(realm.getId(), user.getId());
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import com.wartsila.support.TokenBucketLimiter;
+
+/**
+ * Limits how often verification emails may be requested per user and per client IP address. Limits are node-local,
+ * so in a cluster the effective limit is the configured one times the number of nodes that receive the requests.
+ * <p>
+ * The IP address limit defaults to {@value #DEFAULT_IP_CAPACITY} emails per period. Users behind NAT, a VPN or a
+ * corporate proxy share a single address and can exceed that legitimately. For such deployments raise the
+ * {@code emailRateLimitPerIp} option of the {@code ip-authenticator} provider above the peak number of new IP
+ * verifications per period from the largest shared egress address, rather than disabling the limit with 0. Each limit
+ * hashes its keys into a fixed number of buckets, see {@link TokenBucketLimiter} for how to size them.
+ */
+public final class VerificationEmailLimits {
+
+    public static final int DEFAULT_USER_CAPACITY = 5;
+
+    public static final int DEFAULT_IP_CAPACITY = 50;
+
+    public static final long DEFAULT_PERIOD_SECONDS = 60 * 60;
+
+    public static final int DEFAULT_STRIPES = 65536;
+
+    private final TokenBucketLimiter users;
+
+    private final TokenBucketLimiter ips;
+
+    /**
+     * @param userCapacity emails per user per period, 0 for no limit
+     * @param ipCapacity emails per client IP address per period, 0 for no limit
+     * @param periodSeconds time for an exhausted limit to fully recover
+     * @param stripes number of buckets per limit
+     */
+    public VerificationEmailLimits(int userCapacity, int ipCapacity, long periodSeconds, int stripes) {
+        long periodMillis = TimeUnit.SECONDS.toMillis(periodSeconds);
+        this.users = userCapacity > 0 ? new TokenBucketLimiter(stripes, userCapacity, periodMillis) : null;
+        this.ips = ipCapacity > 0 ? new TokenBucketLimiter(stripes, ipCapacity, periodMillis) : null;
+    }
+
+    /**
+     * Takes a token for sending a verification email from both limits. If the IP address is over its limit, the token
+     * taken for the user is returned.
+     *
+     * @param realm realm
+     * @param user user the email is sent to
+     * @param ip client IP address requesting the email
+     * @return false if either the user or the IP address has exceeded its limit
+     */
+    public boolean tryAcquire(RealmModel realm, UserModel user, ClientIp ip) {
+        String userKey = realm.getId() + '/' + user.getId();
+        if (this.users != null && !this.users.tryAcquire(userKey)) {
+            return false;
+        }
+        if (this.ips != null && !this.ips.tryAcquire(ip.getText())) {
+            if (this.users != null) {
+                this.users.release(userKey);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationEmailLimits [users=" + (this.users != null) + ", ips=" + (this.ips != null) + "]";
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+
+/**
+ * Access to the {@link VerifiedIpStore} and helpers for the {@code ip;expiry;lastMatched} entry format.
+ */
+public final class VerifiedIpAddresses {
+
+    public static final String CLUSTER_TASK_KEY = "ip-authenticator-verified-ip-invalidation";
+
+    private static final Logger logger = Logger.getLogger(VerifiedIpAddresses.class);
+
+    private static volatile VerifiedIpCache cache = new VerifiedIpCache(VerifiedIpCache.DEFAULT_MAX_ENTRIES);
+
+    private static volatile long pruneGraceSeconds = 0L;
+
+    /**
+     * Last matched time of an entry is only written when it is older than this, so that logins do not write to the
+     * store every time.
+     */
+    public static final long LAST_MATCHED_UPDATE_INTERVAL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private VerifiedIpAddresses() {
+        // utility
+    }
+
+    /**
+     * Replaces the cache of compiled entries.
+     *
+     * @param maxEntries maximum number of users to keep compiled entries for
+     */
+    static void configureCache(int maxEntries) {
+        cache = new VerifiedIpCache(maxEntries);
+    }
+
+    /**
+     * Sets how long expired entries are kept before they are pruned.
+     *
+     * @param graceSeconds grace period in seconds
+     */
+    static void configurePruning(long graceSeconds) {
+        pruneGraceSeconds = graceSeconds;
+    }
+
+    static VerifiedIpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Starts receiving invalidations from the other cluster nodes.
+     *
+     * @param session session
+     */
+    static void registerInvalidations(KeycloakSession session) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        cluster.registerListener(CLUSTER_TASK_KEY, event -> {
+            if (event instanceof Invalidation) {
+                Invalidation invalidation = (Invalidation) event;
+                invalidateLocally(invalidation.getRealmId(), invalidation.getUserId());
+            }
+        });
+    }
+
+    /**
+     * Drops the cached entries and direct grant decisions of a user on all cluster nodes, now and again after the
+     * transaction of session completes so that a read racing with the write is not cached.
+     *
+     * @param session session
+     * @param realmId realm id
+     * @param userId user id
+     */
+    static void invalidate(KeycloakSession session, String realmId, String userId) {
+        invalidateLocally(realmId, userId);
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        session.getTransactionManager().enlistAfterCompletion(new KeycloakTransaction() {
+
+            private boolean active;
+
+            @Override
+            public void begin() {
+                this.active = true;
+            }
+
+            @Override
+            public void commit() {
+                this.active = false;
+                invalidateLocally(realmId, userId);
+                if (cluster != null) {
+                    cluster.notify(CLUSTER_TASK_KEY, new Invalidation(realmId, userId), true);
+                }
+            }
+
+            @Override
+            public void rollback() {
+                this.active = false;
+                invalidateLocally(realmId, userId);
+            }
+
+            @Override
+            public void setRollbackOnly() {
+                // NOOP
+            }
+
+            @Override
+            public boolean getRollbackOnly() {
+                return false;
+            }
+
+            @Override
+            public boolean isActive() {
+                return this.active;
+            }
+        });
+    }
+
+    private static void invalidateLocally(String realmId, String userId) {
+        cache.invalidate(realmId, userId);
+        DirectGrantDecisions.get().invalidate(realmId, userId);
+    }
+
+    /**
+     * Returns the verified IP store of the session, {@link JpaVerifiedIpStoreFactory#PROVIDER_ID} unless another
+     * default provider is configured for SPI {@value VerifiedIpStoreSpi#NAME}.
+     *
+     * @param session session
+     * @return store
+     */
+    public static VerifiedIpStore store(KeycloakSession session) {
+        VerifiedIpStore store = session.getProvider(VerifiedIpStore.class);
+        if (store == null) {
+            store = session.getProvider(VerifiedIpStore.class, JpaVerifiedIpStoreFactory.PROVIDER_ID);
+        }
+        return store;
+    }
+
+    /**
+     * @return epoch second, entries expiring at or before this are pruned
+     */
+    static long pruneExpiredBefore() {
+        return currentTimeSeconds() - pruneGraceSeconds;
+    }
+
+    /**
+     * Drops entries that expired before {@code expiredBefore} and collapses entries of the same address so that only
+     * the latest expiry and last matched time are kept. Entries that cannot be parsed are kept as they are.
+     *
+     * @param values stored entries
+     * @param expiredBefore epoch second, entries expiring at or before this are dropped
+     * @return remaining entries in current format
+     */
+    static List<String> prune(List<String> values, long expiredBefore) {
+        Map<String, IpAuthorizationEntry> latest = new LinkedHashMap<>();
+        List<String> invalid = new ArrayList<>();
+        for (String value : values) {
+            IpAuthorizationEntry entry;
+            try {
+                entry = IpAuthorizationEntry.parse(value);
+            } catch (IllegalArgumentException e) {
+                invalid.add(value);
+                continue;
+            }
+            if (entry.getValidUntilEpochSecond() <= expiredBefore) {
+                continue;
+            }
+            IpAuthorizationEntry previous = latest.get(entry.getIpAddress());
+            if (previous == null) {
+                latest.put(entry.getIpAddress(), entry);
+            } else {
+                previous.setValidUntilEpochSecond(
+                        Math.max(previous.getValidUntilEpochSecond(), entry.getValidUntilEpochSecond()));
+                previous.setLastMatchedEpochSecond(
+                        Math.max(previous.getLastMatchedEpochSecond(), entry.getLastMatchedEpochSecond()));
+            }
+        }
+
+        List<String> pruned = new ArrayList<>(latest.size() + invalid.size());
+        for (IpAuthorizationEntry entry : latest.values()) {
+            pruned.add(entry.format());
+        }
+        pruned.addAll(invalid);
+        return pruned;
+    }
+
+    /**
+     * Compiles stored entries into a prefix set with expiries as epoch seconds. Entries that have already expired or
+     * cannot be parsed are left out.
+     *
+     * @param values values of {@link IpAuthorizeConstants#VERIFIED_IP_ADDRESS} attribute
+     * @return compiled entries
+     */
+    public static VerifiedIpSet compile(List<String> values) {
+        VerifiedIpSet.Builder builder = new VerifiedIpSet.Builder();
+        long now = currentTimeSeconds();
+        for (String value : values) {
+            try {
+                IpAuthorizationEntry entry = IpAuthorizationEntry.parse(value);
+                long expiresAt = entry.getValidUntilEpochSecond();
+                if (expiresAt > now) {
+                    builder.add(entry.getIpAddress(), expiresAt, entry.getLastMatchedEpochSecond(),
+                            entry.getIpAddress());
+                }
+            } catch (IllegalArgumentException e) {
+                logger.warnf("Ignoring invalid verified IP address entry \"%s\": %s", value, e.getMessage());
+            }
+        }
+        return builder.build();
+    }
+
+    static long currentTimeSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    /**
+     * Invalidation of the entries of a user sent to the other cluster nodes.
+     */
+    public static final class Invalidation implements ClusterEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String realmId;
+
+        private final String userId;
+
+        public Invalidation(String realmId, String userId) {
+            this.realmId = realmId;
+            this.userId = userId;
+        }
+
+        public String getRealmId() {
+            return this.realmId;
+        }
+
+        public String getUserId() {
+            return this.userId;
+        }
+
+        @Override
+        public String toString() {
+            return "Invalidation [realmId=" + this.realmId + ", userId=" + this.userId + "]";
+        }
+    }
+}
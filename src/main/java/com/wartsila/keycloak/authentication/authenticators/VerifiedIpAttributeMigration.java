@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * One-off task that copies verified IP entries from the user attribute {@link IpAuthorizeConstants#VERIFIED_IP_ADDRESS}
+ * to table {@code IP_VERIFICATION}. Each realm is migrated by one cluster node, in batches of users each in its own
+ * transaction, and the realm attribute {@value #STATE_ATTRIBUTE} records when it is done. The attribute values are kept
+ * so that the upgrade can be reverted, and are only removed when the task is run again with {@code removeAttributes}
+ * once the migration has been confirmed.
+ */
+public class VerifiedIpAttributeMigration {
+
+    public static final String TASK_NAME = "verified-ip-attribute-migration";
+
+    public static final String STATE_ATTRIBUTE = "ipAuthenticatorVerifiedIpMigration";
+
+    public static final String COPIED = "copied";
+
+    public static final String REMOVED = "removed";
+
+    private static final int TASK_TIMEOUT_SECONDS = 60 * 60;
+
+    /**
+     * Ids of users with the attribute, imported or stored by user federation, after a given id.
+     */
+    private static final String FIND_USERS = "select ua.USER_ID from USER_ATTRIBUTE ua"
+            + " join USER_ENTITY u on u.ID = ua.USER_ID where ua.NAME = ?1 and u.REALM_ID = ?2 and ua.USER_ID > ?3"
+            + " union select f.USER_ID from FED_USER_ATTRIBUTE f"
+            + " where f.NAME = ?1 and f.REALM_ID = ?2 and f.USER_ID > ?3 order by 1";
+
+    private static final Logger logger = Logger.getLogger(VerifiedIpAttributeMigration.class);
+
+    private final int batchSize;
+
+    private final boolean removeAttributes;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TASK_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param batchSize number of users migrated per transaction
+     * @param removeAttributes true to remove the attribute values once copied
+     */
+    public VerifiedIpAttributeMigration(int batchSize, boolean removeAttributes) {
+        this.batchSize = batchSize;
+        this.removeAttributes = removeAttributes;
+    }
+
+    /**
+     * @param realm realm
+     * @return true if the entries of all users of the realm have been copied to the table
+     */
+    public static boolean isMigrated(RealmModel realm) {
+        return realm.getAttribute(STATE_ATTRIBUTE) != null;
+    }
+
+    /**
+     * Migrates the realms that still need it on a dedicated thread.
+     *
+     * @param sessionFactory session factory
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.executor.execute(() -> {
+            try {
+                run(sessionFactory);
+            } catch (RuntimeException e) {
+                logger.error("Failed to migrate verified IP address attributes", e);
+            }
+        });
+    }
+
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    private void run(KeycloakSessionFactory sessionFactory) {
+        List<String> realmIds = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> s.realms().getRealms().forEach(realm -> {
+            String state = realm.getAttribute(STATE_ATTRIBUTE);
+            if (state == null || (this.removeAttributes && !REMOVED.equals(state))) {
+                realmIds.add(realm.getId());
+            }
+        }));
+
+        for (String realmId : realmIds) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            KeycloakSession session = sessionFactory.create();
+            try {
+                ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+                if (cluster == null) {
+                    migrate(sessionFactory, realmId);
+                    continue;
+                }
+                ExecutionResult<Void> result = cluster.executeIfNotExecuted(TASK_NAME + "::" + realmId,
+                        TASK_TIMEOUT_SECONDS, () -> {
+                            migrate(sessionFactory, realmId);
+                            return null;
+                        });
+                if (!result.isExecuted()) {
+                    logger.debugf("Verified IP addresses of realm %s are migrated by another node", realmId);
+                }
+            } finally {
+                session.close();
+            }
+        }
+    }
+
+    private void migrate(KeycloakSessionFactory sessionFactory, String realmId) {
+        long started = System.currentTimeMillis();
+        long users = 0;
+        String after = "";
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                logger.infof("Verified IP address migration of realm %s interrupted after %d users", realmId, users);
+                return;
+            }
+            List<String> userIds = migrateBatch(sessionFactory, realmId, after);
+            users += userIds.size();
+            if (userIds.size() < this.batchSize) {
+                break;
+            }
+            after = userIds.get(userIds.size() - 1);
+        }
+
+        String state = this.removeAttributes ? REMOVED : COPIED;
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm != null) {
+                realm.setAttribute(STATE_ATTRIBUTE, state);
+            }
+        });
+        logger.infof("Verified IP addresses of %d users of realm %s %s in %d ms", users, realmId,
+                this.removeAttributes ? "moved to table" : "copied to table", System.currentTimeMillis() - started);
+    }
+
+    private List<String> migrateBatch(KeycloakSessionFactory sessionFactory, String realmId, String after) {
+        List<String> userIds = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                return;
+            }
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            List<?> rows = em.createNativeQuery(FIND_USERS)
+                    .setParameter(1, IpAuthorizeConstants.VERIFIED_IP_ADDRESS)
+                    .setParameter(2, realmId)
+                    .setParameter(3, after)
+                    .setMaxResults(this.batchSize)
+                    .getResultList();
+            JpaVerifiedIpStore store = new JpaVerifiedIpStore(session);
+            for (Object row : rows) {
+                String userId = (String) row;
+                userIds.add(userId);
+                UserModel user = session.users().getUserById(userId, realm);
+                if (user != null) {
+                    store.copyAttribute(realm, user, this.removeAttributes);
+                }
+            }
+        });
+        return userIds;
+    }
+}
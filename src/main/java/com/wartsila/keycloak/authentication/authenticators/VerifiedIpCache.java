@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Node-local LRU cache of compiled verified IP entries, keyed by realm and user id. Every cached value remembers the
+ * raw attribute values it was compiled from, so a change made on another cluster node is noticed on the next read
+ * even without explicit invalidation. Stores that have no such values to compare rely on
+ * {@link VerifiedIpAddresses#invalidate(KeycloakSession, String, String)} instead.
+ */
+public class VerifiedIpCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final int maxEntries;
+
+    private final Map<String, Compiled> entries;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public VerifiedIpCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+                if (size() > VerifiedIpCache.this.maxEntries) {
+                    VerifiedIpCache.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns cached compiled entries for a user if they were compiled from the same attribute values.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @param values current values of {@link IpAuthorizeConstants#VERIFIED_IP_ADDRESS} attribute
+     * @return compiled entries or null in case of a cache miss
+     */
+    public VerifiedIpSet get(String realmId, String userId, List<String> values) {
+        Compiled cached;
+        synchronized (this.entries) {
+            cached = this.entries.get(key(realmId, userId));
+        }
+        if (cached != null && cached.values != null && cached.version == values.hashCode()
+                && cached.values.equals(values)) {
+            this.hits.increment();
+            return cached.set;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Returns cached compiled entries for a user that are valid until invalidated.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @return compiled entries or null in case of a cache miss
+     */
+    public VerifiedIpSet get(String realmId, String userId) {
+        Compiled cached;
+        synchronized (this.entries) {
+            cached = this.entries.get(key(realmId, userId));
+        }
+        if (cached != null && cached.values == null) {
+            this.hits.increment();
+            return cached.set;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches compiled entries for a user.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @param values attribute values the entries were compiled from
+     * @param set compiled entries
+     */
+    public void put(String realmId, String userId, List<String> values, VerifiedIpSet set) {
+        put(realmId, userId, new Compiled(values.hashCode(), new ArrayList<>(values), set));
+    }
+
+    /**
+     * Caches compiled entries for a user until they are invalidated.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     * @param set compiled entries
+     */
+    public void put(String realmId, String userId, VerifiedIpSet set) {
+        put(realmId, userId, new Compiled(0, null, set));
+    }
+
+    private void put(String realmId, String userId, Compiled compiled) {
+        synchronized (this.entries) {
+            this.entries.put(key(realmId, userId), compiled);
+        }
+    }
+
+    /**
+     * Drops the cached entries of a user. Called whenever the entries are written on this node.
+     *
+     * @param realmId realm id
+     * @param userId user id
+     */
+    public void invalidate(String realmId, String userId) {
+        synchronized (this.entries) {
+            this.entries.remove(key(realmId, userId));
+        }
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    private static String key(String realmId, String userId) {
+        return realmId + '/' + userId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VerifiedIpCache[size=%d, maxEntries=%d, hits=%d, misses=%d, evictions=%d]", size(),
+                this.maxEntries, getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private static final class Compiled {
+
+        private final int version;
+
+        private final List<String> values;
+
+        private final VerifiedIpSet set;
+
+        Compiled(int version, List<String> values, VerifiedIpSet set) {
+            this.version = version;
+            this.values = values;
+            this.set = set;
+        }
+    }
+}
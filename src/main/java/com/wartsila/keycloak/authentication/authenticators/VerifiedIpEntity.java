@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+/**
+ * Verified IP entry of a user, one row per verified network. {@code USER_ID} has no foreign key, since users of user
+ * storage providers that are not imported have no {@code USER_ENTITY} row; rows of removed users are deleted by
+ * {@link JpaVerifiedIpStoreFactory}.
+ */
+@Entity
+@Table(name = "IP_VERIFICATION")
+@NamedQueries({
+        @NamedQuery(name = "findVerifiedIpsByUser",
+                query = "select v from VerifiedIpEntity v where v.userId = :userId"),
+        @NamedQuery(name = "findValidVerifiedIpsByUser",
+                query = "select v from VerifiedIpEntity v where v.userId = :userId and v.expiresAt > :now"),
+        @NamedQuery(name = "findExpiredVerifiedIpIdsByRealm",
+                query = "select v.id from VerifiedIpEntity v where v.realmId = :realmId"
+                        + " and v.expiresAt <= :expiredBefore"),
+        @NamedQuery(name = "deleteVerifiedIpsByIds",
+                query = "delete from VerifiedIpEntity v where v.id in :ids"),
+        @NamedQuery(name = "deleteVerifiedIpsByUser",
+                query = "delete from VerifiedIpEntity v where v.userId = :userId"),
+        @NamedQuery(name = "deleteVerifiedIpsByRealm",
+                query = "delete from VerifiedIpEntity v where v.realmId = :realmId") })
+public class VerifiedIpEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    @Column(name = "USER_ID", length = 255, nullable = false)
+    private String userId;
+
+    @Column(name = "NETWORK", length = 39, nullable = false)
+    private String network;
+
+    @Column(name = "PREFIX_LENGTH", nullable = false)
+    private int prefixLength;
+
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    @Column(name = "LAST_USED", nullable = false)
+    private long lastUsed;
+
+    public String getId() {
+        return this.id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return this.realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return this.userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * @return network address of the verified range
+     */
+    public String getNetwork() {
+        return this.network;
+    }
+
+    public void setNetwork(String network) {
+        this.network = network;
+    }
+
+    public int getPrefixLength() {
+        return this.prefixLength;
+    }
+
+    public void setPrefixLength(int prefixLength) {
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * @return epoch second when the entry expires
+     */
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return epoch second when the entry was last used for login, 0 if never
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    public void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * @return range in {@code network/prefixLength} notation
+     */
+    public String getRange() {
+        return this.network + "/" + this.prefixLength;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.wartsila.support.IpAddress;
+import com.wartsila.support.IpPrefixSet;
+
+/**
+ * Compiled verified IP entries of a user. Matching returns the index of the entry so that its last matched time can be
+ * checked without reading the store again. Each entry has a key that identifies it in the {@link VerifiedIpStore}
+ * it was read from.
+ */
+public final class VerifiedIpSet {
+
+    public static final int NOT_FOUND = IpPrefixSet.NOT_FOUND;
+
+    private final IpPrefixSet prefixes;
+
+    private final String[] keys;
+
+    private final long[] lastMatched;
+
+    private final long[] expiresAt;
+
+    private VerifiedIpSet(IpPrefixSet prefixes, String[] keys, long[] lastMatched, long[] expiresAt) {
+        this.prefixes = prefixes;
+        this.keys = keys;
+        this.lastMatched = lastMatched;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Finds an unexpired entry covering address.
+     *
+     * @param address address to check
+     * @param now current epoch second
+     * @return index of entry or {@link #NOT_FOUND}
+     */
+    public int match(IpAddress address, long now) {
+        return this.prefixes.find(address, now);
+    }
+
+    public boolean contains(IpAddress address, long now) {
+        return this.prefixes.contains(address, now);
+    }
+
+    /**
+     * @param index index returned by {@link #match(IpAddress, long)}
+     * @return key of the entry in the store
+     */
+    public String getKey(int index) {
+        return this.keys[index];
+    }
+
+    /**
+     * @param index index returned by {@link #match(IpAddress, long)}
+     * @return epoch second when the entry was last used for login, 0 if never
+     */
+    public long getLastMatched(int index) {
+        return this.lastMatched[index];
+    }
+
+    /**
+     * @param index index returned by {@link #match(IpAddress, long)}
+     * @return epoch second when the entry expires
+     */
+    public long getExpiresAt(int index) {
+        return this.expiresAt[index];
+    }
+
+    public int size() {
+        return this.keys.length;
+    }
+
+    public static class Builder {
+
+        private final IpPrefixSet prefixes = new IpPrefixSet();
+
+        private final List<String> keys = new ArrayList<>();
+
+        private long[] lastMatched = new long[8];
+
+        private long[] expiresAt = new long[8];
+
+        /**
+         * Adds an entry.
+         *
+         * @param range address or range
+         * @param expiresAt epoch second
+         * @param lastMatched epoch second when entry was last used for login, 0 if never
+         * @param key key of the entry in the store
+         * @return this builder
+         * @throws IllegalArgumentException if range could not be parsed
+         */
+        public Builder add(String range, long expiresAt, long lastMatched, String key) {
+            int index = this.keys.size();
+            this.prefixes.add(range, expiresAt, index);
+            if (index == this.lastMatched.length) {
+                this.lastMatched = Arrays.copyOf(this.lastMatched, index * 2);
+                this.expiresAt = Arrays.copyOf(this.expiresAt, index * 2);
+            }
+            this.lastMatched[index] = lastMatched;
+            this.expiresAt[index] = expiresAt;
+            this.keys.add(key);
+            return this;
+        }
+
+        public VerifiedIpSet build() {
+            return new VerifiedIpSet(this.prefixes, this.keys.toArray(new String[this.keys.size()]),
+                    Arrays.copyOf(this.lastMatched, this.keys.size()), Arrays.copyOf(this.expiresAt, this.keys.size()));
+        }
+    }
+}
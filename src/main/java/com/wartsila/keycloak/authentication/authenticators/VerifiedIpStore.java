@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.Provider;
+
+/**
+ * Storage of verified IP addresses of users.
+ */
+public interface VerifiedIpStore extends Provider {
+
+    /**
+     * Returns the compiled verified IP entries of a user.
+     *
+     * @param realm realm
+     * @param user user
+     * @return compiled entries, expiries as epoch seconds
+     */
+    VerifiedIpSet getVerifiedIps(RealmModel realm, UserModel user);
+
+    /**
+     * Adds a verified IP entry to a user. Expired entries of the user may be pruned at the same time. If the user would
+     * have more than {@code maxEntries} entries, the least recently matched ones are evicted.
+     *
+     * @param realm realm
+     * @param user user
+     * @param entry entry to add
+     * @param maxEntries maximum number of entries to keep, 0 or less for no limit
+     */
+    void addVerifiedIp(RealmModel realm, UserModel user, IpAuthorizationEntry entry, int maxEntries);
+
+    /**
+     * Records that an entry was used for login. Implementations should only write when the previously recorded time
+     * is older than {@link VerifiedIpAddresses#LAST_MATCHED_UPDATE_INTERVAL_SECONDS}.
+     *
+     * @param realm realm
+     * @param user user
+     * @param verified compiled entries returned by {@link #getVerifiedIps(RealmModel, UserModel)}
+     * @param index index of matched entry
+     * @param now current epoch second
+     */
+    void matched(RealmModel realm, UserModel user, VerifiedIpSet verified, int index, long now);
+
+    /**
+     * Removes expired entries of users in a realm. Implementations may process users or rows in pages, in which case
+     * they are called again with the next {@code first} until they return less than {@code max}.
+     *
+     * @param realm realm
+     * @param first index of first user to process
+     * @param max maximum number of users or rows to process
+     * @param expiredBefore epoch second, entries expiring at or before this are removed
+     * @param result statistics to update
+     * @return number of users or rows processed
+     */
+    int removeExpired(RealmModel realm, int first, int max, long expiredBefore, VerifiedIpSweeper.Result result);
+}
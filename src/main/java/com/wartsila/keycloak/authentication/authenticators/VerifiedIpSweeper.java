@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Scheduled task that compacts the verified IP entries of all users in all realms. Users are processed in batches, each
+ * in its own transaction, on a dedicated thread so that the shared timer thread is not blocked. Throughput is limited
+ * to a configured number of users per second.
+ */
+public class VerifiedIpSweeper implements ScheduledTask {
+
+    public static final String TASK_NAME = "verified-ip-sweeper";
+
+    private static final Logger logger = Logger.getLogger(VerifiedIpSweeper.class);
+
+    private final int batchSize;
+
+    private final int maxUsersPerSecond;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TASK_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param batchSize number of users loaded per transaction
+     * @param maxUsersPerSecond maximum number of users processed per second, 0 for no limit
+     */
+    public VerifiedIpSweeper(int batchSize, int maxUsersPerSecond) {
+        this.batchSize = batchSize;
+        this.maxUsersPerSecond = maxUsersPerSecond;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        if (!this.running.compareAndSet(false, true)) {
+            logger.debugf("Previous %s run still in progress, skipping", TASK_NAME);
+            return;
+        }
+        this.executor.execute(() -> {
+            try {
+                sweep(sessionFactory);
+            } catch (RuntimeException e) {
+                logger.error("Failed to sweep verified IP address entries", e);
+            } finally {
+                this.running.set(false);
+            }
+        });
+    }
+
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    private void sweep(KeycloakSessionFactory sessionFactory) {
+        long started = System.currentTimeMillis();
+        List<String> realmIds = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                s -> s.realms().getRealms().forEach(realm -> realmIds.add(realm.getId())));
+
+        Result result = new Result();
+        for (String realmId : realmIds) {
+            int first = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                long batchStarted = System.currentTimeMillis();
+                int processed = sweepBatch(sessionFactory, realmId, first, result);
+                if (processed < this.batchSize) {
+                    break;
+                }
+                first += processed;
+                throttle(processed, System.currentTimeMillis() - batchStarted);
+            }
+        }
+
+        logger.infof("Verified IP address sweep done in %d ms: %d users checked, %d users updated, "
+                + "%d entries and %d bytes reclaimed", System.currentTimeMillis() - started, result.users,
+                result.updatedUsers, result.entries, result.bytes);
+    }
+
+    private int sweepBatch(KeycloakSessionFactory sessionFactory, String realmId, int first, Result result) {
+        int[] processed = new int[1];
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                return;
+            }
+            processed[0] = VerifiedIpAddresses.store(session).removeExpired(realm, first, this.batchSize,
+                    VerifiedIpAddresses.pruneExpiredBefore(), result);
+        });
+        return processed[0];
+    }
+
+    private void throttle(int processed, long elapsedMillis) {
+        if (this.maxUsersPerSecond <= 0) {
+            return;
+        }
+        long minimumMillis = TimeUnit.SECONDS.toMillis(processed) / this.maxUsersPerSecond;
+        if (elapsedMillis < minimumMillis) {
+            try {
+                Thread.sleep(minimumMillis - elapsedMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Statistics of a sweep.
+     */
+    public static final class Result {
+
+        private long users;
+
+        private long updatedUsers;
+
+        private long entries;
+
+        private long bytes;
+
+        /**
+         * Records that a user was checked.
+         *
+         * @param updated true if entries of the user were removed
+         */
+        public void userChecked(boolean updated) {
+            this.users++;
+            if (updated) {
+                this.updatedUsers++;
+            }
+        }
+
+        /**
+         * Records removed entries.
+         *
+         * @param entries number of removed entries
+         * @param bytes approximate size of removed entries in bytes
+         */
+        public void reclaimed(long entries, long bytes) {
+            this.entries += entries;
+            this.bytes += bytes;
+        }
+    }
+}
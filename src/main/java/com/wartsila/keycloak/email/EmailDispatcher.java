@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Sends rendered emails in the background so that the request thread does not wait for SMTP. Messages are queued in a
+ * bounded queue and sent by a fixed pool of workers, each in its own session. Failed sends are retried with
+ * exponential backoff. If an {@link EmailOutbox} is given, messages are appended to it before they are queued and
+ * messages left in it by a previous run are sent on start.
+ */
+public class EmailDispatcher {
+
+    public static final int DEFAULT_WORKERS = 2;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000L;
+
+    public static final long DEFAULT_OUTBOX_FLUSH_MILLIS = 50L;
+
+    private static final long NO_OUTBOX = -1L;
+
+    private static final Logger logger = Logger.getLogger(EmailDispatcher.class);
+
+    private final ThreadPoolExecutor workers;
+
+    private final ScheduledExecutorService retries;
+
+    private final PooledEmailSender sender;
+
+    private final EmailOutbox outbox;
+
+    private final long outboxFlushMillis;
+
+    private final int maxAttempts;
+
+    private final long retryBackoffMillis;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private long loggedSent;
+
+    private long loggedFailed;
+
+    private long loggedRejected;
+
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    /**
+     * @param sender sender used by the workers
+     * @param outbox outbox for messages not yet sent, null to keep them only in memory
+     * @param outboxFlushMillis interval for forcing the outbox to disk
+     * @param workers number of sending threads
+     * @param queueCapacity maximum number of messages waiting to be sent
+     * @param maxAttempts maximum number of attempts per message
+     * @param retryBackoffMillis delay before the first retry, doubled for each further retry
+     */
+    public EmailDispatcher(PooledEmailSender sender, EmailOutbox outbox, long outboxFlushMillis, int workers,
+            int queueCapacity, int maxAttempts, long retryBackoffMillis) {
+        this.sender = sender;
+        this.outbox = outbox;
+        this.outboxFlushMillis = outboxFlushMillis;
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory("ip-authenticator-email"));
+        this.retries = Executors.newSingleThreadScheduledExecutor(threadFactory("ip-authenticator-email-retry"));
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Must be called before messages are dispatched.
+     *
+     * @param sessionFactory factory for sessions used to send messages
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        if (this.outbox == null) {
+            return;
+        }
+        this.retries.scheduleWithFixedDelay(this.outbox::flush, this.outboxFlushMillis, this.outboxFlushMillis,
+                TimeUnit.MILLISECONDS);
+        List<EmailOutbox.Entry> recovered = this.outbox.recover();
+        if (!recovered.isEmpty()) {
+            this.retries.execute(() -> replay(recovered));
+        }
+    }
+
+    /**
+     * Queues recovered messages, waiting for room in the queue.
+     */
+    private void replay(List<EmailOutbox.Entry> entries) {
+        for (EmailOutbox.Entry entry : entries) {
+            while (true) {
+                try {
+                    this.workers.execute(() -> send(entry.getMessage(), entry.getId(), 1));
+                    break;
+                } catch (RejectedExecutionException e) {
+                    if (this.workers.isShutdown()) {
+                        return;
+                    }
+                    try {
+                        Thread.sleep(this.retryBackoffMillis);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a message for sending.
+     *
+     * @param message message to send
+     * @throws EmailException if the queue or the outbox is full
+     */
+    public void dispatch(EmailMessage message) throws EmailException {
+        long id = NO_OUTBOX;
+        if (this.outbox != null) {
+            try {
+                id = this.outbox.append(message);
+            } catch (IOException e) {
+                this.rejected.incrementAndGet();
+                throw new EmailException("Failed to store email", e);
+            }
+        }
+        long outboxId = id;
+        try {
+            this.workers.execute(() -> send(message, outboxId, 1));
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            completed(outboxId);
+            throw new EmailException("Email queue is full", e);
+        }
+    }
+
+    private void completed(long id) {
+        if (id != NO_OUTBOX) {
+            this.outbox.complete(id);
+        }
+    }
+
+    private void send(EmailMessage message, long id, int attempt) {
+        if (message.isExpired(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()))) {
+            logger.warnf("Dropping expired email to user %s", message.getUserId());
+            this.failed.incrementAndGet();
+            completed(id);
+            return;
+        }
+        EmailException[] error = new EmailException[1];
+        try {
+            KeycloakModelUtils.runJobInTransaction(this.sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(message.getRealmId());
+                UserModel user = realm == null ? null : session.users().getUserById(message.getUserId(), realm);
+                if (user == null) {
+                    logger.warnf("Dropping email to removed user %s", message.getUserId());
+                    return;
+                }
+                try {
+                    this.sender.send(session, realm.getId(), realm.getSmtpConfig(), message, user.getEmail());
+                } catch (EmailException e) {
+                    error[0] = e;
+                }
+            });
+        } catch (RuntimeException e) {
+            error[0] = new EmailException(e);
+        }
+
+        if (error[0] == null) {
+            this.sent.incrementAndGet();
+            completed(id);
+        } else if (attempt < this.maxAttempts) {
+            long delay = this.retryBackoffMillis << (attempt - 1);
+            logger.warnf("Failed to send email to user %s, attempt %d, retrying in %d ms: %s", message.getUserId(),
+                    attempt, delay, error[0].getMessage());
+            retry(message, id, attempt + 1, delay);
+        } else {
+            this.failed.incrementAndGet();
+            completed(id);
+            logger.errorf(error[0], "Failed to send email to user %s after %d attempts", message.getUserId(), attempt);
+        }
+    }
+
+    private void retry(EmailMessage message, long id, int attempt, long delay) {
+        try {
+            this.retries.schedule(() -> {
+                try {
+                    this.workers.execute(() -> send(message, id, attempt));
+                } catch (RejectedExecutionException e) {
+                    this.rejected.incrementAndGet();
+                    completed(id);
+                    logger.errorf("Email queue is full, dropping retry to user %s", message.getUserId());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, message stays in outbox if there is one
+            this.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of messages waiting to be sent
+     */
+    public int getQueueDepth() {
+        return this.workers.getQueue().size();
+    }
+
+    /**
+     * Logs the queue depth and the sent, failed and rejected counts if messages are queued or any count has changed
+     * since the previous call. Meant to be called periodically.
+     */
+    public synchronized void logStatistics() {
+        long sentCount = this.sent.get();
+        long failedCount = this.failed.get();
+        long rejectedCount = this.rejected.get();
+        if (getQueueDepth() > 0 || sentCount != this.loggedSent || failedCount != this.loggedFailed
+                || rejectedCount != this.loggedRejected) {
+            logger.info(this);
+            this.loggedSent = sentCount;
+            this.loggedFailed = failedCount;
+            this.loggedRejected = rejectedCount;
+        }
+    }
+
+    public void close() {
+        this.retries.shutdownNow();
+        this.workers.shutdown();
+        try {
+            if (!this.workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                int discarded = this.workers.shutdownNow().size();
+                if (this.outbox == null) {
+                    logger.warnf("Discarding %d queued emails", discarded);
+                } else {
+                    logger.infof("Leaving %d queued emails in outbox", discarded);
+                }
+            }
+        } catch (InterruptedException e) {
+            this.workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.sender.close();
+        if (this.outbox != null) {
+            this.outbox.flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EmailDispatcher[queued=%d, sent=%d, failed=%d, rejected=%d, outbox=%s]", getQueueDepth(),
+                this.sent.get(), this.failed.get(), this.rejected.get(),
+                this.outbox == null ? "disabled" : String.valueOf(this.outbox.getPendingCount()));
+    }
+}
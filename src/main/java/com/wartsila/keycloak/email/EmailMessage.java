@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+/**
+ * Rendered email ready to be sent. Holds only ids and copied values so that it can be sent outside the session it was
+ * rendered in, or stored in the {@link EmailOutbox}. The SMTP configuration is read from the realm when sending, so
+ * that credentials are never written to the outbox.
+ */
+public final class EmailMessage {
+
+    private final String realmId;
+
+    private final String userId;
+
+    private final String subject;
+
+    private final String textBody;
+
+    private final String htmlBody;
+
+    private final long expiresAt;
+
+    public EmailMessage(String realmId, String userId, String subject, String textBody, String htmlBody) {
+        this(realmId, userId, subject, textBody, htmlBody, 0L);
+    }
+
+    private EmailMessage(String realmId, String userId, String subject, String textBody, String htmlBody,
+            long expiresAt) {
+        this.realmId = realmId;
+        this.userId = userId;
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param expiresAt epoch second after which the message is no longer worth sending, 0 for never
+     * @return copy of this message with the expiry
+     */
+    public EmailMessage withExpiresAt(long expiresAt) {
+        return new EmailMessage(this.realmId, this.userId, this.subject, this.textBody, this.htmlBody, expiresAt);
+    }
+
+    public String getRealmId() {
+        return this.realmId;
+    }
+
+    public String getUserId() {
+        return this.userId;
+    }
+
+    public String getSubject() {
+        return this.subject;
+    }
+
+    public String getTextBody() {
+        return this.textBody;
+    }
+
+    public String getHtmlBody() {
+        return this.htmlBody;
+    }
+
+    /**
+     * @return epoch second after which the message is no longer worth sending, 0 for never
+     */
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    /**
+     * @param now current epoch second
+     * @return true if the message has an expiry that has passed
+     */
+    public boolean isExpired(long now) {
+        return this.expiresAt > 0 && this.expiresAt <= now;
+    }
+}
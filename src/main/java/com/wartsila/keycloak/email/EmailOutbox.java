@@ -0,0 +1,459 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Memory-mapped ring buffer of emails that have been accepted but not yet sent. Messages are appended before they are
+ * queued and marked completed once sent or given up on, so messages that were queued or in flight when the node
+ * stopped are replayed on the next start, unless they have expired by then.
+ * <p>
+ * The file starts with a header holding the checkpoint, the offset and sequence number of the oldest record not yet
+ * completed. Each record holds its payload length, its sequence number, a CRC of the payload and whether it has been
+ * completed. Records are written one after another and wrap back to the start of the file behind the checkpoint. When
+ * the records from the checkpoint on take more than half of the file, the oldest pending record is copied to the end,
+ * so a single message waiting for a retry does not keep the space of the completed records after it. Recovery follows
+ * consecutive sequence numbers from the checkpoint and skips completed records, so stale records are never replayed;
+ * a message copied shortly before a crash may be replayed twice.
+ * The mapping is forced to disk in batches by {@link #flush()}, which the caller runs periodically.
+ * <p>
+ * Records contain action token links and verification codes, so the file is created readable by its owner only.
+ */
+public class EmailOutbox {
+
+    public static final long DEFAULT_SIZE_BYTES = 16L * 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(EmailOutbox.class);
+
+    private static final int MAGIC = 0x49504f42;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int CHECKPOINT_SEQUENCE_OFFSET = 8;
+
+    private static final int CHECKPOINT_OFFSET = 16;
+
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private static final int COMPLETED = 1;
+
+    /**
+     * Record length marking that the next record is at the start of the file.
+     */
+    private static final int WRAP = -1;
+
+    /**
+     * Maximum number of pending records copied to the end per append.
+     */
+    private static final int MAX_RELOCATIONS = 2;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Records not yet completed by id, in the order they were written.
+     */
+    private final Map<Long, Slot> pending = new LinkedHashMap<>();
+
+    private long nextId = 1L;
+
+    private long nextSequence;
+
+    private int writePosition;
+
+    private boolean dirty;
+
+    /**
+     * Record read back from the outbox.
+     */
+    public static final class Entry {
+
+        private final long id;
+
+        private final EmailMessage message;
+
+        Entry(long id, EmailMessage message) {
+            this.id = id;
+            this.message = message;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public EmailMessage getMessage() {
+            return this.message;
+        }
+    }
+
+    private static final class Slot {
+
+        private int position;
+
+        private long sequence;
+
+        private final int length;
+
+        Slot(int position, long sequence, int length) {
+            this.position = position;
+            this.sequence = sequence;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Opens or creates an outbox file.
+     *
+     * @param file outbox file
+     * @param sizeBytes size of the file, fixed once created
+     * @throws IOException if the file could not be opened
+     */
+    public EmailOutbox(Path file, long sizeBytes) throws IOException {
+        boolean posix = file.toAbsolutePath().getFileSystem().supportedFileAttributeViews().contains("posix");
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null && !Files.isDirectory(parent)) {
+            if (posix) {
+                Files.createDirectories(parent, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+            } else {
+                Files.createDirectories(parent);
+            }
+        }
+        FileAttribute<?>[] attributes = posix
+                ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(OWNER_ONLY) }
+                : new FileAttribute<?>[0];
+        try (FileChannel channel = FileChannel.open(file,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                attributes)) {
+            if (posix) {
+                // Also restricts a file created before permissions were set on creation
+                Files.setPosixFilePermissions(file, OWNER_ONLY);
+            }
+            long size = channel.size() > 0 ? channel.size() : Math.min(sizeBytes, Integer.MAX_VALUE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, VERSION);
+            this.buffer.putLong(CHECKPOINT_SEQUENCE_OFFSET, 1L);
+            this.buffer.putLong(CHECKPOINT_OFFSET, HEADER_SIZE);
+            this.buffer.force();
+        }
+        this.nextSequence = this.buffer.getLong(CHECKPOINT_SEQUENCE_OFFSET);
+        this.writePosition = (int) this.buffer.getLong(CHECKPOINT_OFFSET);
+    }
+
+    /**
+     * Reads the records after the checkpoint and marks them pending. Records of messages that have expired are
+     * dropped. Must be called once, before {@link #append(EmailMessage)}.
+     *
+     * @return records that were not completed and have not expired
+     */
+    public synchronized List<Entry> recover() {
+        List<Entry> entries = new ArrayList<>();
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        int expired = 0;
+        int position = this.writePosition;
+        long sequence = this.nextSequence;
+        while (true) {
+            if (position + RECORD_HEADER_SIZE > this.buffer.capacity()) {
+                position = HEADER_SIZE;
+            }
+            int length = this.buffer.getInt(position);
+            if (this.buffer.getLong(position + 4) != sequence) {
+                break;
+            }
+            if (length == WRAP) {
+                position = HEADER_SIZE;
+                sequence++;
+                continue;
+            }
+            int payload = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || payload + length > this.buffer.capacity()
+                    || this.buffer.getInt(position + 12) != crc(payload, length)) {
+                break;
+            }
+            EmailMessage message = this.buffer.getInt(position + 16) == COMPLETED ? null : decode(payload, length);
+            if (message == null) {
+                // Completed after the checkpoint was written
+            } else if (message.isExpired(now)) {
+                expired++;
+            } else {
+                long id = this.nextId++;
+                entries.add(new Entry(id, message));
+                this.pending.put(id, new Slot(position, sequence, RECORD_HEADER_SIZE + length));
+            }
+            position = payload + length;
+            sequence++;
+        }
+        this.writePosition = position;
+        this.nextSequence = sequence;
+        checkpoint();
+        if (!entries.isEmpty() || expired > 0) {
+            logger.infof("Recovered %d unsent emails from outbox, dropped %d expired", entries.size(), expired);
+        }
+        return entries;
+    }
+
+    /**
+     * Appends a message. The record is durable after the next {@link #flush()}.
+     *
+     * @param message message to append
+     * @return id of the record, to be passed to {@link #complete(long)}
+     * @throws IOException if the outbox is full
+     */
+    public synchronized long append(EmailMessage message) throws IOException {
+        byte[] payload = encode(message);
+        int length = RECORD_HEADER_SIZE + payload.length;
+        for (int i = 0; i < MAX_RELOCATIONS && used() + length > (this.buffer.capacity() - HEADER_SIZE) / 2; i++) {
+            if (!relocateOldest()) {
+                break;
+            }
+        }
+        int position = reserve(length);
+        if (position < 0) {
+            throw new IOException("Email outbox is full");
+        }
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(position + RECORD_HEADER_SIZE);
+        record.put(payload);
+        long sequence = this.nextSequence++;
+        this.buffer.putLong(position + 4, sequence);
+        this.buffer.putInt(position + 12, crc(position + RECORD_HEADER_SIZE, payload.length));
+        this.buffer.putInt(position + 16, 0);
+        this.buffer.putInt(position, payload.length);
+
+        long id = this.nextId++;
+        this.pending.put(id, new Slot(position, sequence, length));
+        if (this.pending.size() == 1) {
+            checkpoint();
+        }
+        this.dirty = true;
+        return id;
+    }
+
+    /**
+     * Marks a record completed and moves the checkpoint to the oldest record still pending.
+     *
+     * @param id id returned by {@link #append(EmailMessage)} or {@link #recover()}
+     */
+    public synchronized void complete(long id) {
+        Slot oldest = oldest();
+        Slot slot = this.pending.remove(id);
+        if (slot == null) {
+            return;
+        }
+        this.buffer.putInt(slot.position + 16, COMPLETED);
+        if (slot == oldest) {
+            checkpoint();
+        }
+        this.dirty = true;
+    }
+
+    /**
+     * @return bytes from the oldest pending record to the write position
+     */
+    private int used() {
+        Slot oldest = oldest();
+        if (oldest == null) {
+            return 0;
+        }
+        return this.writePosition > oldest.position ? this.writePosition - oldest.position
+                : this.buffer.capacity() - oldest.position + this.writePosition - HEADER_SIZE;
+    }
+
+    /**
+     * Copies the oldest pending record to the write position, so that the checkpoint can move past it.
+     *
+     * @return false if there was no room
+     */
+    private boolean relocateOldest() {
+        Iterator<Map.Entry<Long, Slot>> iterator = this.pending.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        Map.Entry<Long, Slot> oldest = iterator.next();
+        Slot slot = oldest.getValue();
+        if (this.pending.size() == 1 && slot.position + slot.length == this.writePosition) {
+            return false;
+        }
+        byte[] record = new byte[slot.length];
+        ByteBuffer source = this.buffer.duplicate();
+        source.position(slot.position);
+        source.get(record);
+        int position = reserve(slot.length);
+        if (position < 0) {
+            return false;
+        }
+        ByteBuffer target = this.buffer.duplicate();
+        target.position(position);
+        target.put(record);
+        slot.position = position;
+        slot.sequence = this.nextSequence++;
+        this.buffer.putLong(position + 4, slot.sequence);
+
+        iterator.remove();
+        this.pending.put(oldest.getKey(), slot);
+        checkpoint();
+        this.dirty = true;
+        return true;
+    }
+
+    /**
+     * Reserves room for a record at the write position, wrapping to the start of the file if needed.
+     *
+     * @param length record length including its header
+     * @return position of the record, or -1 if there is no room
+     */
+    private int reserve(int length) {
+        int position = this.writePosition;
+        Slot oldest = oldest();
+        int tail = oldest == null ? -1 : oldest.position;
+        if (tail >= 0 && position <= tail) {
+            if (position + length > tail) {
+                return -1;
+            }
+        } else if (position + length > this.buffer.capacity()) {
+            if (HEADER_SIZE + length > (tail >= 0 ? tail : this.buffer.capacity())) {
+                return -1;
+            }
+            if (position + RECORD_HEADER_SIZE <= this.buffer.capacity()) {
+                this.buffer.putLong(position + 4, this.nextSequence++);
+                this.buffer.putInt(position + 12, 0);
+                this.buffer.putInt(position, WRAP);
+            }
+            position = HEADER_SIZE;
+        }
+        this.writePosition = position + length;
+        return position;
+    }
+
+    private Slot oldest() {
+        Iterator<Slot> iterator = this.pending.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Writes the oldest pending record, or the write position if there is none, as the checkpoint.
+     */
+    private void checkpoint() {
+        Slot oldest = oldest();
+        if (oldest == null) {
+            this.buffer.putLong(CHECKPOINT_SEQUENCE_OFFSET, this.nextSequence);
+            this.buffer.putLong(CHECKPOINT_OFFSET, this.writePosition);
+        } else {
+            this.buffer.putLong(CHECKPOINT_SEQUENCE_OFFSET, oldest.sequence);
+            this.buffer.putLong(CHECKPOINT_OFFSET, oldest.position);
+        }
+    }
+
+    /**
+     * Forces appended records and the checkpoint to disk if anything changed since the last flush.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!this.dirty) {
+                return;
+            }
+            this.dirty = false;
+        }
+        this.buffer.force();
+    }
+
+    /**
+     * @return number of records not yet completed
+     */
+    public synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    private int crc(int from, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = this.buffer.duplicate();
+        payload.position(from).limit(from + length);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(EmailMessage message) {
+        byte[][] fields = { bytes(message.getRealmId()), bytes(message.getUserId()), bytes(message.getSubject()),
+                bytes(message.getTextBody()), bytes(message.getHtmlBody()) };
+        int length = 8;
+        for (byte[] field : fields) {
+            length += 4 + (field == null ? 0 : field.length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putLong(message.getExpiresAt());
+        for (byte[] field : fields) {
+            if (field == null) {
+                payload.putInt(-1);
+            } else {
+                payload.putInt(field.length);
+                payload.put(field);
+            }
+        }
+        return payload.array();
+    }
+
+    private EmailMessage decode(int from, int length) {
+        ByteBuffer payload = this.buffer.duplicate();
+        payload.position(from).limit(from + length);
+        long expiresAt = payload.getLong();
+        return new EmailMessage(string(payload), string(payload), string(payload), string(payload), string(payload))
+                .withExpiresAt(expiresAt);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
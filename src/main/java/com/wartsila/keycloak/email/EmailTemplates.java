@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.FreeMarkerUtil;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.ThemeProvider;
+
+/**
+ * Email themes and compiled templates shared by all requests. Templates are compiled once per theme name and
+ * template by a single {@link FreeMarkerUtil}, and themes are resolved once per theme name. Changing the email theme of
+ * a realm changes the keys used, so the new theme is picked up on the next send. Both caches follow the
+ * {@code cacheTemplates} and {@code cacheThemes} options of the theme SPI, so they are off in development setups.
+ */
+public class EmailTemplates {
+
+    private static final String DEFAULT_THEME = "";
+
+    private final FreeMarkerUtil freeMarker = new FreeMarkerUtil();
+
+    private final boolean cacheThemes = Config.scope("theme").getBoolean("cacheThemes", true);
+
+    private final ConcurrentMap<String, Theme> themes = new ConcurrentHashMap<>();
+
+    public FreeMarkerUtil getFreeMarker() {
+        return this.freeMarker;
+    }
+
+    /**
+     * @param session session
+     * @param realm realm
+     * @return email theme of realm
+     * @throws IOException if theme could not be loaded
+     */
+    public Theme getTheme(KeycloakSession session, RealmModel realm) throws IOException {
+        String name = realm.getEmailTheme();
+        String key = name == null ? DEFAULT_THEME : name;
+        Theme theme = this.cacheThemes ? this.themes.get(key) : null;
+        if (theme == null) {
+            ThemeProvider themeProvider = session.getProvider(ThemeProvider.class, "extending");
+            theme = themeProvider.getTheme(name, Theme.Type.EMAIL);
+            if (this.cacheThemes && theme != null) {
+                this.themes.put(key, theme);
+            }
+        }
+        return theme;
+    }
+}
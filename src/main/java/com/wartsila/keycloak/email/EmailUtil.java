@@ -22,13 +22,11 @@ import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.email.EmailException;
 import org.keycloak.email.EmailSenderProvider;
-import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.theme.FreeMarkerException;
 import org.keycloak.theme.FreeMarkerUtil;
 import org.keycloak.theme.Theme;
-import org.keycloak.theme.ThemeProvider;
 
 public class EmailUtil {
 
@@ -44,16 +42,14 @@ public class EmailUtil {
 
     private Theme theme;
 
-    public static EmailUtil from(AuthenticationFlowContext context) throws EmailException {
+    public static EmailUtil from(AuthenticationFlowContext context, EmailTemplates templates) throws EmailException {
         try {
             EmailSenderProvider senderProvider = context.getSession().getProvider(EmailSenderProvider.class);
 
             RealmModel realm = context.getRealm();
-            KeycloakSession session = context.getSession();
-            ThemeProvider themeProvider = session.getProvider(ThemeProvider.class, "extending");
-            Theme theme = themeProvider.getTheme(realm.getEmailTheme(), Theme.Type.EMAIL);
+            Theme theme = templates.getTheme(context.getSession(), realm);
 
-            return new EmailUtil(new FreeMarkerUtil(), senderProvider).setRealm(realm).setTheme(theme)
+            return new EmailUtil(templates.getFreeMarker(), senderProvider).setRealm(realm).setTheme(theme)
                     .setUser(context.getUser());
         } catch (Exception e) {
             throw new EmailException("Failed to template email", e);
@@ -67,6 +63,20 @@ public class EmailUtil {
     }
 
     public void send(String template, String subject, Map<String, Object> attributes) throws EmailException {
+        EmailMessage message = render(template, subject, attributes);
+        this.emailSenderProvider.send(this.realm.getSmtpConfig(), this.user, subject, message.getTextBody(),
+                message.getHtmlBody());
+    }
+
+    /**
+     * Renders the text and HTML bodies of an email without sending it, see {@link EmailDispatcher}.
+     *
+     * @param template template name, looked up under {@code text/} and {@code html/} of the theme
+     * @param subject email subject
+     * @param attributes template attributes
+     * @return rendered email
+     */
+    public EmailMessage render(String template, String subject, Map<String, Object> attributes) {
 
         attributes.put("user", this.user);
 
@@ -87,7 +97,7 @@ public class EmailUtil {
             htmlBody = null;
         }
 
-        this.emailSenderProvider.send(this.realm.getSmtpConfig(), this.user, subject, textBody, htmlBody);
+        return new EmailMessage(this.realm.getId(), this.user.getId(), subject, textBody, htmlBody);
     }
 
     public EmailUtil setTheme(Theme theme) {
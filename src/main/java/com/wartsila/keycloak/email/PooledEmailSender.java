@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.HostnameVerificationPolicy;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+
+/**
+ * Sends emails over pooled SMTP connections. One pool of connected and authenticated transports is kept per realm,
+ * so consecutive messages to the same relay skip the connect, TLS handshake and login. When the SMTP configuration of
+ * a realm changes, its pool is closed and replaced. Connections that fail or have been idle longer than the idle
+ * timeout are closed and replaced. Messages are built the same way
+ * as by Keycloak's default email sender.
+ */
+public class PooledEmailSender {
+
+    public static final int DEFAULT_POOL_SIZE = EmailDispatcher.DEFAULT_WORKERS;
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000L;
+
+    private static final Logger logger = Logger.getLogger(PooledEmailSender.class);
+
+    private final int poolSize;
+
+    private final long idleTimeoutMillis;
+
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * @param poolSize maximum number of idle connections kept per realm
+     * @param idleTimeoutMillis idle connections older than this are closed instead of reused
+     */
+    public PooledEmailSender(int poolSize, long idleTimeoutMillis) {
+        this.poolSize = poolSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sends a message.
+     *
+     * @param session session, used to set up the truststore when a pool is created
+     * @param realmId id of the realm
+     * @param smtpConfig SMTP configuration of the realm
+     * @param message message to send
+     * @param address recipient address
+     * @throws EmailException if sending failed
+     */
+    public void send(KeycloakSession session, String realmId, Map<String, String> smtpConfig, EmailMessage message,
+            String address) throws EmailException {
+        Pool pool = this.pools.get(realmId);
+        if (pool == null || !pool.config.equals(smtpConfig)) {
+            pool = replace(session, realmId, smtpConfig);
+        }
+        MimeMessage mimeMessage;
+        Address[] recipients;
+        try {
+            mimeMessage = pool.createMessage(message, address);
+            recipients = new Address[] { new InternetAddress(address) };
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            throw new EmailException(e);
+        }
+
+        PooledTransport transport = pool.borrow(this.idleTimeoutMillis);
+        boolean pooled = transport != null;
+        try {
+            if (!pooled) {
+                transport = pool.connect();
+            }
+            transport.transport.sendMessage(mimeMessage, recipients);
+        } catch (MessagingException e) {
+            close(transport);
+            if (!pooled) {
+                throw new EmailException(e);
+            }
+            // Pooled connection may have been closed by the server, retry once on a new one
+            try {
+                transport = pool.connect();
+                transport.transport.sendMessage(mimeMessage, recipients);
+            } catch (MessagingException retryFailure) {
+                close(transport);
+                throw new EmailException(retryFailure);
+            }
+        }
+        if (!pool.release(transport, this.poolSize)) {
+            close(transport);
+        }
+    }
+
+    /**
+     * Returns the pool of a realm for smtpConfig, closing the previous pool of the realm if its configuration differs.
+     */
+    private Pool replace(KeycloakSession session, String realmId, Map<String, String> smtpConfig) {
+        Pool[] replaced = new Pool[1];
+        Pool pool = this.pools.compute(realmId, (id, current) -> {
+            if (current != null && current.config.equals(smtpConfig)) {
+                return current;
+            }
+            replaced[0] = current;
+            return new Pool(session, new HashMap<>(smtpConfig));
+        });
+        if (replaced[0] != null) {
+            logger.debugf("SMTP configuration of realm %s changed, closing its connections", realmId);
+            replaced[0].close();
+        }
+        return pool;
+    }
+
+    /**
+     * @return number of realms with a pool
+     */
+    int getPoolCount() {
+        return this.pools.size();
+    }
+
+    public void close() {
+        for (Pool pool : this.pools.values()) {
+            pool.close();
+        }
+        this.pools.clear();
+    }
+
+    private static void close(PooledTransport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Failed to close transport", e);
+        }
+    }
+
+    private static final class PooledTransport {
+
+        private final Transport transport;
+
+        private long lastUsed;
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private static final class Pool {
+
+        private final Map<String, String> config;
+
+        private final Session mailSession;
+
+        private final boolean auth;
+
+        private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+
+        private boolean closed;
+
+        Pool(KeycloakSession session, Map<String, String> config) {
+            this.config = config;
+            this.auth = "true".equals(config.get("auth"));
+            boolean ssl = "true".equals(config.get("ssl"));
+            boolean starttls = "true".equals(config.get("starttls"));
+
+            Properties props = new Properties();
+            if (config.containsKey("host")) {
+                props.setProperty("mail.smtp.host", config.get("host"));
+            }
+            if (config.get("port") != null) {
+                props.setProperty("mail.smtp.port", config.get("port"));
+            }
+            if (this.auth) {
+                props.setProperty("mail.smtp.auth", "true");
+            }
+            if (ssl) {
+                props.setProperty("mail.smtp.ssl.enable", "true");
+            }
+            if (starttls) {
+                props.setProperty("mail.smtp.starttls.enable", "true");
+            }
+            if (ssl || starttls) {
+                setupTruststore(session, props);
+            }
+            props.setProperty("mail.smtp.timeout", "10000");
+            props.setProperty("mail.smtp.connectiontimeout", "10000");
+            String envelopeFrom = config.get("envelopeFrom");
+            if (envelopeFrom != null && !envelopeFrom.trim().isEmpty()) {
+                props.setProperty("mail.smtp.from", envelopeFrom);
+            }
+            this.mailSession = Session.getInstance(props);
+        }
+
+        private static void setupTruststore(KeycloakSession session, Properties props) {
+            JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+            SSLSocketFactory factory = configurator.getSSLSocketFactory();
+            if (factory != null) {
+                props.put("mail.smtp.ssl.socketFactory", factory);
+                if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                    props.setProperty("mail.smtp.ssl.trust", "*");
+                }
+            }
+        }
+
+        MimeMessage createMessage(EmailMessage message, String address)
+                throws MessagingException, UnsupportedEncodingException {
+            Multipart multipart = new MimeMultipart("alternative");
+            if (message.getTextBody() != null) {
+                MimeBodyPart textPart = new MimeBodyPart();
+                textPart.setText(message.getTextBody(), "UTF-8");
+                multipart.addBodyPart(textPart);
+            }
+            if (message.getHtmlBody() != null) {
+                MimeBodyPart htmlPart = new MimeBodyPart();
+                htmlPart.setContent(message.getHtmlBody(), "text/html; charset=UTF-8");
+                multipart.addBodyPart(htmlPart);
+            }
+
+            MimeMessage mimeMessage = new MimeMessage(this.mailSession);
+            mimeMessage.setFrom(toInternetAddress(this.config.get("from"), this.config.get("fromDisplayName")));
+            String replyTo = this.config.get("replyTo");
+            if (replyTo != null && !replyTo.trim().isEmpty()) {
+                mimeMessage.setReplyTo(
+                        new Address[] { toInternetAddress(replyTo, this.config.get("replyToDisplayName")) });
+            }
+            mimeMessage.setHeader("To", address);
+            mimeMessage.setSubject(message.getSubject(), "utf-8");
+            mimeMessage.setContent(multipart);
+            mimeMessage.saveChanges();
+            mimeMessage.setSentDate(new Date());
+            return mimeMessage;
+        }
+
+        private static InternetAddress toInternetAddress(String email, String displayName)
+                throws MessagingException, UnsupportedEncodingException {
+            if (email == null || email.trim().isEmpty()) {
+                throw new MessagingException("Please provide a valid address");
+            }
+            if (displayName == null || displayName.trim().isEmpty()) {
+                return new InternetAddress(email);
+            }
+            return new InternetAddress(email, displayName, "utf-8");
+        }
+
+        /**
+         * @return connected idle transport, or null if there is none
+         */
+        PooledTransport borrow(long idleTimeoutMillis) {
+            long now = System.currentTimeMillis();
+            PooledTransport transport;
+            while ((transport = this.idle.pollFirst()) != null) {
+                if (now - transport.lastUsed <= idleTimeoutMillis && transport.transport.isConnected()) {
+                    return transport;
+                }
+                PooledEmailSender.close(transport);
+            }
+            return null;
+        }
+
+        PooledTransport connect() throws MessagingException {
+            Transport transport = this.mailSession.getTransport("smtp");
+            if (this.auth) {
+                transport.connect(this.config.get("user"), this.config.get("password"));
+            } else {
+                transport.connect();
+            }
+            return new PooledTransport(transport);
+        }
+
+        /**
+         * @return false if the pool is full and transport should be closed
+         */
+        synchronized boolean release(PooledTransport transport, int poolSize) {
+            if (this.closed || this.idle.size() >= poolSize) {
+                return false;
+            }
+            transport.lastUsed = System.currentTimeMillis();
+            this.idle.offerFirst(transport);
+            return true;
+        }
+
+        /**
+         * Closes the idle connections, connections in use are closed when released.
+         */
+        void close() {
+            synchronized (this) {
+                this.closed = true;
+            }
+            PooledTransport transport;
+            while ((transport = this.idle.pollFirst()) != null) {
+                PooledEmailSender.close(transport);
+            }
+        }
+    }
+}
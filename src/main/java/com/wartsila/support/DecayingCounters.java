@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free approximate counters per key that halve every half-life. Counts are kept in two rows of striped buckets
+ * indexed by independent hashes of the key, and the smaller of the two is reported, so keys sharing a bucket in one
+ * row rarely inflate each other's count. Memory use does not depend on the number of distinct keys. Each bucket is a
+ * single {@code long} holding the time of the last halving and the count, updated with compare-and-set.
+ */
+public final class DecayingCounters {
+
+    private static final int COUNT_BITS = 24;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final AtomicLongArray buckets;
+
+    private final int mask;
+
+    private final long halfLifeMillis;
+
+    private final long epochMillis = System.currentTimeMillis() - 1;
+
+    /**
+     * @param stripes number of buckets per row, rounded up to a power of two
+     * @param halfLifeMillis time for a count to halve
+     */
+    public DecayingCounters(int stripes, long halfLifeMillis) {
+        if (halfLifeMillis < 1) {
+            throw new IllegalArgumentException("Invalid half-life " + halfLifeMillis);
+        }
+        int size = Math.max(Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1, 1);
+        this.buckets = new AtomicLongArray(size * 2);
+        this.mask = size - 1;
+        this.halfLifeMillis = halfLifeMillis;
+    }
+
+    /**
+     * Adds one to the count of key.
+     *
+     * @param key key
+     * @return count of key after the increment
+     */
+    public long increment(String key) {
+        return increment(key, System.currentTimeMillis());
+    }
+
+    long increment(String key, long nowMillis) {
+        long now = nowMillis - this.epochMillis;
+        int h = key.hashCode();
+        return Math.min(increment(index1(h), now), increment(this.mask + 1 + index2(h), now));
+    }
+
+    /**
+     * @param key key
+     * @return current count of key
+     */
+    public long get(String key) {
+        return get(key, System.currentTimeMillis());
+    }
+
+    long get(String key, long nowMillis) {
+        long now = nowMillis - this.epochMillis;
+        int h = key.hashCode();
+        return Math.min(count(this.buckets.get(index1(h)), now),
+                count(this.buckets.get(this.mask + 1 + index2(h)), now));
+    }
+
+    private long increment(int index, long now) {
+        while (true) {
+            long state = this.buckets.get(index);
+            long count = count(state, now);
+            long since = count == 0 ? now : halvedAt(state, now);
+            long updated = (since << COUNT_BITS) | Math.min(count + 1, COUNT_MASK);
+            if (this.buckets.compareAndSet(index, state, updated)) {
+                return updated & COUNT_MASK;
+            }
+        }
+    }
+
+    private long count(long state, long now) {
+        long halvings = (now - (state >>> COUNT_BITS)) / this.halfLifeMillis;
+        return halvings >= COUNT_BITS ? 0L : (state & COUNT_MASK) >>> halvings;
+    }
+
+    /**
+     * @return time of the last halving, so that partially elapsed half-lives are not lost
+     */
+    private long halvedAt(long state, long now) {
+        long since = state >>> COUNT_BITS;
+        return since + (now - since) / this.halfLifeMillis * this.halfLifeMillis;
+    }
+
+    private int index1(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & this.mask;
+    }
+
+    private int index2(int h) {
+        h ^= h >>> 15;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & this.mask;
+    }
+}
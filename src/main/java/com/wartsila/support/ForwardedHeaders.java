@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+/**
+ * Finds the client address in {@code X-Forwarded-For} and RFC 7239 {@code Forwarded} headers. Hops are walked from
+ * the right, skipping addresses of trusted proxies, and the first untrusted hop is returned. Hops are located by index
+ * so that only the returned address is copied out of the header.
+ * <p>
+ * Hops may be given as {@code 192.0.2.1}, {@code 192.0.2.1:8080}, {@code 2001:db8::1} or {@code [2001:db8::1]:8080}.
+ * A hop that is not an IP literal, such as {@code unknown} or an obfuscated identifier, is never trusted.
+ */
+public final class ForwardedHeaders {
+
+    private static final String FOR = "for=";
+
+    private ForwardedHeaders() {
+        // utility
+    }
+
+    /**
+     * @param header value of {@code X-Forwarded-For}, values of repeated headers joined with commas
+     * @param trustedProxies addresses of trusted proxies
+     * @return address of first untrusted hop from the right, left-most hop if all are trusted, or null if header has
+     *         no hops
+     */
+    public static String clientFromXForwardedFor(String header, IpPrefixSet trustedProxies) {
+        if (header == null) {
+            return null;
+        }
+        String leftMost = null;
+        int to = header.length();
+        while (to >= 0) {
+            int from = header.lastIndexOf(',', to - 1) + 1;
+            long host = host(header, from, to);
+            if (host >= 0) {
+                String client = untrusted(header, host, trustedProxies);
+                if (client != null) {
+                    return client;
+                }
+                leftMost = hostString(header, host);
+            }
+            to = from - 1;
+        }
+        return leftMost;
+    }
+
+    /**
+     * @param header value of {@code Forwarded}, values of repeated headers joined with commas
+     * @param trustedProxies addresses of trusted proxies
+     * @return address of first untrusted {@code for} node from the right, left-most node if all are trusted, or null
+     *         if header has no {@code for} parameters
+     */
+    public static String clientFromForwarded(String header, IpPrefixSet trustedProxies) {
+        if (header == null) {
+            return null;
+        }
+        String leftMost = null;
+        int to = header.length();
+        while (to >= 0) {
+            int from = header.lastIndexOf(',', to - 1) + 1;
+            long host = forNode(header, from, to);
+            if (host >= 0) {
+                String client = untrusted(header, host, trustedProxies);
+                if (client != null) {
+                    return client;
+                }
+                leftMost = hostString(header, host);
+            }
+            to = from - 1;
+        }
+        return leftMost;
+    }
+
+    /**
+     * @return host of hop if it is not a trusted proxy, otherwise null
+     */
+    private static String untrusted(String header, long host, IpPrefixSet trustedProxies) {
+        IpAddress address = IpAddressParser.tryParse(header, hostFrom(host), hostTo(host));
+        if (address != null && trustedProxies.contains(address)) {
+            return null;
+        }
+        return hostString(header, host);
+    }
+
+    /**
+     * Locates the value of the {@code for} parameter in a {@code Forwarded} element.
+     *
+     * @return packed host range, or -1 if element has no {@code for} parameter
+     */
+    private static long forNode(String header, int from, int to) {
+        int pair = from;
+        while (pair < to) {
+            int pairEnd = indexOf(header, ';', pair, to);
+            if (pairEnd < 0) {
+                pairEnd = to;
+            }
+            int name = skipSpaces(header, pair, pairEnd);
+            if (header.regionMatches(true, name, FOR, 0, FOR.length()) && name + FOR.length() <= pairEnd) {
+                int value = name + FOR.length();
+                int valueEnd = trimEnd(header, value, pairEnd);
+                if (valueEnd - value >= 2 && header.charAt(value) == '"' && header.charAt(valueEnd - 1) == '"') {
+                    value++;
+                    valueEnd--;
+                }
+                return host(header, value, valueEnd);
+            }
+            pair = pairEnd + 1;
+        }
+        return -1L;
+    }
+
+    /**
+     * Strips spaces, brackets and port from a node.
+     *
+     * @return host range packed as {@code from << 32 | to}, or -1 if node is empty
+     */
+    private static long host(String header, int from, int to) {
+        from = skipSpaces(header, from, to);
+        to = trimEnd(header, from, to);
+        if (from == to) {
+            return -1L;
+        }
+        if (header.charAt(from) == '[') {
+            int close = indexOf(header, ']', from, to);
+            if (close >= 0) {
+                return pack(from + 1, close);
+            }
+            return pack(from, to);
+        }
+        int colon = indexOf(header, ':', from, to);
+        if (colon >= 0 && indexOf(header, ':', colon + 1, to) < 0) {
+            // IPv4 with port
+            return pack(from, colon);
+        }
+        return pack(from, to);
+    }
+
+    private static int indexOf(String header, char ch, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (header.charAt(i) == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(String header, int from, int to) {
+        while (from < to && (header.charAt(from) == ' ' || header.charAt(from) == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(String header, int from, int to) {
+        while (to > from && (header.charAt(to - 1) == ' ' || header.charAt(to - 1) == '\t')) {
+            to--;
+        }
+        return to;
+    }
+
+    private static long pack(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+
+    private static int hostFrom(long host) {
+        return (int) (host >>> 32);
+    }
+
+    private static int hostTo(long host) {
+        return (int) host;
+    }
+
+    private static String hostString(String header, long host) {
+        return header.substring(hostFrom(host), hostTo(host));
+    }
+}
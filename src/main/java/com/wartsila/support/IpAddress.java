@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+/**
+ * Pre-parsed binary IP address. IPv4 addresses are kept in the low 32 bits of {@link #getLow()}, IPv6 addresses use
+ * both {@link #getHigh()} and {@link #getLow()}. Parse once per request and match as many times as needed.
+ */
+public final class IpAddress {
+
+    private final boolean ipv6;
+
+    private final long high;
+
+    private final long low;
+
+    private IpAddress(boolean ipv6, long high, long low) {
+        this.ipv6 = ipv6;
+        this.high = high;
+        this.low = low;
+    }
+
+    public static IpAddress ipv4(int address) {
+        return new IpAddress(false, 0L, address & 0xFFFFFFFFL);
+    }
+
+    public static IpAddress ipv6(long high, long low) {
+        return new IpAddress(true, high, low);
+    }
+
+    /**
+     * Parses an IP address literal. Never performs name resolution.
+     *
+     * @param address IPv4 or IPv6 address
+     * @return parsed address
+     * @throws IllegalArgumentException if address could not be parsed
+     */
+    public static IpAddress parse(CharSequence address) {
+        IpAddress parsed = tryParse(address);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Failed to parse address " + address);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses an IP address literal. Never performs name resolution.
+     *
+     * @param address IPv4 or IPv6 address
+     * @return parsed address or null if address is not a valid IP literal
+     */
+    public static IpAddress tryParse(CharSequence address) {
+        return address == null ? null : IpAddressParser.tryParse(address, 0, address.length());
+    }
+
+    public boolean isIpv6() {
+        return this.ipv6;
+    }
+
+    public long getHigh() {
+        return this.high;
+    }
+
+    public long getLow() {
+        return this.low;
+    }
+
+    /**
+     * @return IPv4 address as an int, only meaningful when {@link #isIpv6()} is false.
+     */
+    public int toIpv4() {
+        return (int) this.low;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IpAddress)) {
+            return false;
+        }
+        IpAddress other = (IpAddress) obj;
+        return this.ipv6 == other.ipv6 && this.high == other.high && this.low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Boolean.hashCode(this.ipv6);
+        result = 31 * result + Long.hashCode(this.high);
+        result = 31 * result + Long.hashCode(this.low);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (!this.ipv6) {
+            int v4 = toIpv4();
+            return ((v4 >>> 24) & 0xFF) + "." + ((v4 >>> 16) & 0xFF) + "." + ((v4 >>> 8) & 0xFF) + "." + (v4 & 0xFF);
+        }
+        StringBuilder sb = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            long word = i < 4 ? this.high >>> (48 - 16 * i) : this.low >>> (48 - 16 * (i - 4));
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Integer.toHexString((int) (word & 0xFFFF)));
+        }
+        return sb.toString();
+    }
+}
@@ -23,13 +23,23 @@
  */
 package com.wartsila.support;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Arrays;
-
 public final class IpAddressMatcher {
     private final int nMaskBits;
-    private final InetAddress requiredAddress;
+    private final boolean ipv6;
+
+    /*
+     * IPv4 network and mask.
+     */
+    private final int network;
+    private final int mask;
+
+    /*
+     * IPv6 network and mask, split in high and low 64 bits.
+     */
+    private final long highNetwork;
+    private final long lowNetwork;
+    private final long highMask;
+    private final long lowMask;
 
     /**
      * Takes a specific IP address or a range specified using the
@@ -39,55 +49,112 @@ public final class IpAddressMatcher {
      */
     public IpAddressMatcher(String ipAddress) {
         int indexOf = ipAddress.indexOf('/');
+        IpAddress requiredAddress;
         if (indexOf > 0) {
-            this.nMaskBits = Integer.parseInt(ipAddress.substring(indexOf + 1));
-            ipAddress = ipAddress.substring(0, indexOf);
+            this.nMaskBits = parseMaskBits(ipAddress, indexOf + 1);
+            requiredAddress = IpAddressParser.tryParse(ipAddress, 0, indexOf);
         } else {
             this.nMaskBits = -1;
+            requiredAddress = IpAddress.tryParse(ipAddress);
         }
-        this.requiredAddress = parseAddress(ipAddress);
-    }
-
-    public boolean matches(String address) {
-        InetAddress remoteAddress = parseAddress(address);
+        if (requiredAddress == null) {
+            throw new IllegalArgumentException("Failed to parse address " + ipAddress);
+        }
+        this.ipv6 = requiredAddress.isIpv6();
 
-        if (!this.requiredAddress.getClass().equals(remoteAddress.getClass())) {
-            return false;
+        int maxBits = this.ipv6 ? 128 : 32;
+        if (this.nMaskBits > maxBits) {
+            throw new IllegalArgumentException("Invalid netmask " + this.nMaskBits + " for address " + ipAddress);
         }
+        int bits = this.nMaskBits < 0 ? maxBits : this.nMaskBits;
 
-        if (this.nMaskBits < 0) {
-            return remoteAddress.equals(this.requiredAddress);
+        if (this.ipv6) {
+            this.mask = 0;
+            this.network = 0;
+            this.highMask = prefixMask(Math.min(bits, 64));
+            this.lowMask = prefixMask(Math.max(bits - 64, 0));
+            this.highNetwork = requiredAddress.getHigh() & this.highMask;
+            this.lowNetwork = requiredAddress.getLow() & this.lowMask;
+        } else {
+            this.mask = bits == 0 ? 0 : -1 << (32 - bits);
+            this.network = requiredAddress.toIpv4() & this.mask;
+            this.highMask = 0L;
+            this.lowMask = 0L;
+            this.highNetwork = 0L;
+            this.lowNetwork = 0L;
         }
+    }
 
-        byte[] remAddr = remoteAddress.getAddress();
-        byte[] reqAddr = this.requiredAddress.getAddress();
+    private static int parseMaskBits(String ipAddress, int from) {
+        int bits = 0;
+        int to = ipAddress.length();
+        if (from == to || to - from > 3) {
+            throw new IllegalArgumentException("Invalid netmask in " + ipAddress);
+        }
+        for (int i = from; i < to; i++) {
+            char c = ipAddress.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid netmask in " + ipAddress);
+            }
+            bits = bits * 10 + (c - '0');
+        }
+        return bits;
+    }
 
-        int oddBits = this.nMaskBits % 8;
-        int nMaskBytes = this.nMaskBits / 8 + (oddBits == 0 ? 0 : 1);
-        byte[] mask = new byte[nMaskBytes];
+    private static long prefixMask(int bits) {
+        return bits == 0 ? 0L : -1L << (64 - bits);
+    }
 
-        Arrays.fill(mask, 0, oddBits == 0 ? mask.length : mask.length - 1, (byte) 0xFF);
+    public boolean matches(String address) {
+        return matches(IpAddress.parse(address));
+    }
 
-        if (oddBits != 0) {
-            int finalByte = (1 << oddBits) - 1;
-            finalByte <<= 8 - oddBits;
-            mask[mask.length - 1] = (byte) finalByte;
+    /**
+     * Matches a pre-parsed address against this range without allocating.
+     *
+     * @param address parsed remote address
+     * @return true if address belongs to this range
+     */
+    public boolean matches(IpAddress address) {
+        if (this.ipv6 != address.isIpv6()) {
+            return false;
         }
-
-        for (int i = 0; i < mask.length; i++) {
-            if ((remAddr[i] & mask[i]) != (reqAddr[i] & mask[i])) {
-                return false;
-            }
+        if (this.ipv6) {
+            return (address.getHigh() & this.highMask) == this.highNetwork
+                    && (address.getLow() & this.lowMask) == this.lowNetwork;
         }
+        return (address.toIpv4() & this.mask) == this.network;
+    }
 
-        return true;
+    public boolean isIpv6() {
+        return this.ipv6;
     }
 
-    private InetAddress parseAddress(String address) {
-        try {
-            return InetAddress.getByName(address);
-        } catch (UnknownHostException e) {
-            throw new IllegalArgumentException("Failed to parse address" + address, e);
-        }
+    /**
+     * @return prefix length of this range, or -1 when a single address is matched.
+     */
+    public int getMaskBits() {
+        return this.nMaskBits;
+    }
+
+    /**
+     * @return IPv4 network address, only meaningful when {@link #isIpv6()} is false.
+     */
+    public int getIpv4Network() {
+        return this.network;
+    }
+
+    /**
+     * @return high 64 bits of IPv6 network address, only meaningful when {@link #isIpv6()} is true.
+     */
+    public long getHighNetwork() {
+        return this.highNetwork;
+    }
+
+    /**
+     * @return low 64 bits of IPv6 network address, only meaningful when {@link #isIpv6()} is true.
+     */
+    public long getLowNetwork() {
+        return this.lowNetwork;
     }
 }
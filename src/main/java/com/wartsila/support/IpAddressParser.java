@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+/**
+ * Strict IPv4 and IPv6 literal parser. Unlike {@link java.net.InetAddress#getByName(String)} this never falls back to
+ * name resolution, so malformed input is rejected without blocking on DNS. Works directly on a {@link CharSequence}
+ * range without intermediate strings or arrays.
+ * <p>
+ * Accepted forms are dotted quad IPv4 ({@code 192.168.0.1}), full and compressed IPv6 ({@code 2001:db8::1}) and IPv6
+ * with an embedded IPv4 tail ({@code ::ffff:192.168.0.1}). Zone ids, brackets and ports are not accepted. IPv4-mapped
+ * IPv6 addresses are returned as IPv4, like {@link java.net.InetAddress} does.
+ */
+public final class IpAddressParser {
+
+    private IpAddressParser() {
+        // utility
+    }
+
+    /**
+     * Parses an IP address literal.
+     *
+     * @param text text to parse
+     * @param from start index, inclusive
+     * @param to end index, exclusive
+     * @return parsed address or null if text is not a valid literal
+     */
+    public static IpAddress tryParse(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) == ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) == ' ') {
+            to--;
+        }
+        if (from >= to) {
+            return null;
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == ':') {
+                return parseIpv6(text, from, to);
+            }
+        }
+        long ipv4 = parseIpv4(text, from, to);
+        return ipv4 < 0 ? null : IpAddress.ipv4((int) ipv4);
+    }
+
+    /**
+     * Parses a dotted quad IPv4 literal.
+     *
+     * @param text text to parse
+     * @param from start index, inclusive
+     * @param to end index, exclusive
+     * @return address as an unsigned 32 bit value, or -1 if text is not a valid literal
+     */
+    public static long parseIpv4(CharSequence text, int from, int to) {
+        long address = 0L;
+        int octets = 0;
+        int i = from;
+        while (i < to) {
+            int value = 0;
+            int digits = 0;
+            while (i < to) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return -1L;
+            }
+            address = (address << 8) | value;
+            octets++;
+            if (i < to) {
+                if (text.charAt(i) != '.' || octets == 4 || i == to - 1) {
+                    return -1L;
+                }
+                i++;
+            }
+        }
+        return octets == 4 ? address : -1L;
+    }
+
+    private static IpAddress parseIpv6(CharSequence text, int from, int to) {
+        // Groups before "::" are collected into head, groups after it into tail.
+        long headHigh = 0L;
+        long headLow = 0L;
+        int headGroups = 0;
+        long tailHigh = 0L;
+        long tailLow = 0L;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = from;
+        if (text.charAt(i) == ':') {
+            if (to - i < 2 || text.charAt(i + 1) != ':') {
+                return null;
+            }
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < to) {
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            while (i < to) {
+                int digit = hexDigit(text.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                digits++;
+                i++;
+            }
+
+            int groupsToAdd;
+            long bits;
+            if (i < to && text.charAt(i) == '.') {
+                // Embedded IPv4 tail, must be the last part of the literal.
+                long ipv4 = parseIpv4(text, groupStart, to);
+                if (ipv4 < 0) {
+                    return null;
+                }
+                groupsToAdd = 2;
+                bits = ipv4;
+                i = to;
+            } else {
+                if (digits == 0 || digits > 4) {
+                    return null;
+                }
+                groupsToAdd = 1;
+                bits = value;
+            }
+
+            int shift = 16 * groupsToAdd;
+            if (compressed) {
+                tailHigh = (tailHigh << shift) | (tailLow >>> (64 - shift));
+                tailLow = (tailLow << shift) | bits;
+                tailGroups += groupsToAdd;
+            } else {
+                headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+                headLow = (headLow << shift) | bits;
+                headGroups += groupsToAdd;
+            }
+            if (headGroups + tailGroups > 8) {
+                return null;
+            }
+
+            if (i < to) {
+                if (text.charAt(i) != ':' || i == to - 1) {
+                    return null;
+                }
+                i++;
+                if (text.charAt(i) == ':') {
+                    if (compressed) {
+                        return null;
+                    }
+                    compressed = true;
+                    i++;
+                }
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return null;
+        }
+
+        // Move head groups to the top, "::" fills the gap with zeros.
+        int shift = 16 * (8 - headGroups);
+        long high;
+        long low;
+        if (shift == 0) {
+            high = headHigh;
+            low = headLow;
+        } else if (shift >= 64) {
+            high = shift == 128 ? 0L : headLow << (shift - 64);
+            low = 0L;
+        } else {
+            high = (headHigh << shift) | (headLow >>> (64 - shift));
+            low = headLow << shift;
+        }
+        high |= tailHigh;
+        low |= tailLow;
+
+        if (high == 0L && (low >>> 32) == 0xFFFFL) {
+            return IpAddress.ipv4((int) low);
+        }
+        return IpAddress.ipv6(high, low);
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
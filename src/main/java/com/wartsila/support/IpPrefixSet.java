@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+/**
+ * Set of IP ranges stored in a compressed binary (Patricia) trie keyed by address bits. Every range carries an expiry
+ * and lookups answer whether an address is covered by any range that has not expired, in time proportional to the
+ * address length instead of the number of ranges.
+ * <p>
+ * IPv4 ranges are keyed in the IPv4-mapped IPv6 space ({@code ::ffff:0:0/96}) but kept in their own trie, so IPv6
+ * ranges never cover IPv4 addresses and vice versa, same as {@link IpAddressMatcher}.
+ * <p>
+ * Not thread-safe while being built. Once fully built the set may be shared and read concurrently.
+ */
+public final class IpPrefixSet {
+
+    /**
+     * Expiry for ranges that never expire.
+     */
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    /**
+     * Expiry of nodes that only branch the trie and hold no range of their own.
+     */
+    private static final long NO_ENTRY = Long.MIN_VALUE;
+
+    /**
+     * Returned by {@link #find(IpAddress, long)} when no range covers the address.
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+
+    private static final int IPV4_MAPPED_PREFIX_LENGTH = 96;
+
+    private static final int ADDRESS_BITS = 128;
+
+    private Node ipv4Root;
+
+    private Node ipv6Root;
+
+    private int size;
+
+    /**
+     * Adds a range such as {@code 192.168.1.0/24} or a single address.
+     *
+     * @param range address or range
+     * @param expiresAt expiry of the range, compared against the {@code now} given to {@link #contains(IpAddress, long)}
+     * @throws IllegalArgumentException if the range could not be parsed
+     */
+    public void add(String range, long expiresAt) {
+        add(new IpAddressMatcher(range), expiresAt, 0);
+    }
+
+    /**
+     * Adds a range such as {@code 192.168.1.0/24} or a single address with an id that is returned by
+     * {@link #find(IpAddress, long)}.
+     *
+     * @param range address or range
+     * @param expiresAt expiry of the range, compared against the {@code now} given to {@link #contains(IpAddress, long)}
+     * @param id non-negative id of the range
+     * @throws IllegalArgumentException if the range could not be parsed
+     */
+    public void add(String range, long expiresAt, int id) {
+        add(new IpAddressMatcher(range), expiresAt, id);
+    }
+
+    /**
+     * Adds a range that was already parsed into a matcher.
+     *
+     * @param range address or range
+     * @param expiresAt expiry of the range, compared against the {@code now} given to {@link #contains(IpAddress, long)}
+     */
+    public void add(IpAddressMatcher range, long expiresAt) {
+        add(range, expiresAt, 0);
+    }
+
+    /**
+     * Adds a range that was already parsed into a matcher with an id that is returned by
+     * {@link #find(IpAddress, long)}. If the same range is added more than once the id of the one with the latest
+     * expiry is kept.
+     *
+     * @param range address or range
+     * @param expiresAt expiry of the range, compared against the {@code now} given to {@link #contains(IpAddress, long)}
+     * @param id non-negative id of the range
+     */
+    public void add(IpAddressMatcher range, long expiresAt, int id) {
+        int bits = range.getMaskBits();
+        if (range.isIpv6()) {
+            this.ipv6Root = insert(this.ipv6Root, range.getHighNetwork(), range.getLowNetwork(),
+                    bits < 0 ? ADDRESS_BITS : bits, expiresAt, id);
+        } else {
+            this.ipv4Root = insert(this.ipv4Root, 0L, IPV4_MAPPED_PREFIX | (range.getIpv4Network() & 0xFFFFFFFFL),
+                    IPV4_MAPPED_PREFIX_LENGTH + (bits < 0 ? 32 : bits), expiresAt, id);
+        }
+    }
+
+    /**
+     * Checks if address is covered by a range that has not expired.
+     *
+     * @param address address to check
+     * @param now current time in the unit used for expiries
+     * @return true if any range containing the address expires after {@code now}
+     */
+    public boolean contains(IpAddress address, long now) {
+        return find(address, now) != NOT_FOUND;
+    }
+
+    /**
+     * Finds the widest range covering address that has not expired.
+     *
+     * @param address address to check
+     * @param now current time in the unit used for expiries
+     * @return id of the range or {@link #NOT_FOUND}
+     */
+    public int find(IpAddress address, long now) {
+        long high;
+        long low;
+        Node node;
+        if (address.isIpv6()) {
+            high = address.getHigh();
+            low = address.getLow();
+            node = this.ipv6Root;
+        } else {
+            high = 0L;
+            low = IPV4_MAPPED_PREFIX | address.getLow();
+            node = this.ipv4Root;
+        }
+
+        while (node != null) {
+            if ((high & node.highMask) != node.high || (low & node.lowMask) != node.low) {
+                return NOT_FOUND;
+            }
+            if (node.expiresAt > now) {
+                return node.id;
+            }
+            if (node.prefixLength == ADDRESS_BITS) {
+                return NOT_FOUND;
+            }
+            node = bitAt(high, low, node.prefixLength) == 0 ? node.left : node.right;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Checks if address is covered by any range regardless of expiry.
+     *
+     * @param address address to check
+     * @return true if any range contains the address
+     */
+    public boolean contains(IpAddress address) {
+        return contains(address, NO_ENTRY);
+    }
+
+    /**
+     * @return number of distinct ranges in this set
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Inserts a range to the trie starting at root.
+     *
+     * @return root of the trie after insertion
+     */
+    private Node insert(Node root, long high, long low, int prefixLength, long expiresAt, int id) {
+        Node added = new Node(high, low, prefixLength, expiresAt, id);
+        if (root == null) {
+            this.size++;
+            return added;
+        }
+
+        Node parent = null;
+        Node node = root;
+        while (true) {
+            int common = Math.min(commonPrefixLength(node.high, node.low, added.high, added.low),
+                    Math.min(node.prefixLength, prefixLength));
+
+            if (common == node.prefixLength && common == prefixLength) {
+                // Same range, keep the latest expiry
+                if (node.expiresAt == NO_ENTRY) {
+                    this.size++;
+                }
+                if (expiresAt > node.expiresAt) {
+                    node.expiresAt = expiresAt;
+                    node.id = id;
+                }
+                return root;
+            }
+
+            if (common == node.prefixLength) {
+                // Existing node is a prefix of the new range, descend
+                int bit = bitAt(high, low, common);
+                Node child = bit == 0 ? node.left : node.right;
+                if (child == null) {
+                    node.setChild(bit, added);
+                    this.size++;
+                    return root;
+                }
+                parent = node;
+                node = child;
+                continue;
+            }
+
+            Node replacement;
+            if (common == prefixLength) {
+                // New range is a prefix of the existing node
+                replacement = added;
+            } else {
+                // Ranges diverge, split with a branch node
+                replacement = new Node(high, low, common, NO_ENTRY, NOT_FOUND);
+                replacement.setChild(bitAt(high, low, common), added);
+            }
+            replacement.setChild(bitAt(node.high, node.low, common), node);
+            this.size++;
+            if (parent == null) {
+                return replacement;
+            }
+            parent.setChild(bitAt(high, low, parent.prefixLength), replacement);
+            return root;
+        }
+    }
+
+    private static int commonPrefixLength(long high1, long low1, long high2, long low2) {
+        long high = high1 ^ high2;
+        if (high != 0L) {
+            return Long.numberOfLeadingZeros(high);
+        }
+        return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+    }
+
+    private static int bitAt(long high, long low, int index) {
+        if (index < 64) {
+            return (int) (high >>> (63 - index)) & 1;
+        }
+        return (int) (low >>> (127 - index)) & 1;
+    }
+
+    private static long prefixMask(int bits) {
+        if (bits <= 0) {
+            return 0L;
+        }
+        return bits >= 64 ? -1L : -1L << (64 - bits);
+    }
+
+    private static final class Node {
+
+        private final long high;
+
+        private final long low;
+
+        private final long highMask;
+
+        private final long lowMask;
+
+        private final int prefixLength;
+
+        private long expiresAt;
+
+        private int id;
+
+        private Node left;
+
+        private Node right;
+
+        Node(long high, long low, int prefixLength, long expiresAt, int id) {
+            this.highMask = prefixMask(prefixLength);
+            this.lowMask = prefixMask(prefixLength - 64);
+            this.high = high & this.highMask;
+            this.low = low & this.lowMask;
+            this.prefixLength = prefixLength;
+            this.expiresAt = expiresAt;
+            this.id = id;
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0) {
+                this.left = child;
+            } else {
+                this.right = child;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token bucket rate limiter over a fixed table of buckets. Keys are hashed to a bucket, so memory use does
+ * not grow with the number of distinct keys, at the cost of keys that share a bucket also sharing its tokens. Each
+ * bucket is a single {@code long} holding the time of the last refill and the remaining tokens in thousandths, updated
+ * with compare-and-set.
+ * <p>
+ * With {@code n} keys active within a period and {@code m} buckets, a key shares its bucket with another active key
+ * with probability of about {@code n / m}. It is only limited early if those keys together spend the tokens it has
+ * left, so false rejections are rarer still, but buckets should be several times the expected number of active keys.
+ */
+public final class TokenBucketLimiter {
+
+    private static final int TOKEN_BITS = 22;
+
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private static final long ONE_TOKEN = 1000L;
+
+    /**
+     * Largest capacity whose thousandths fit in the token bits of a bucket.
+     */
+    public static final int MAX_CAPACITY = (int) (TOKEN_MASK / ONE_TOKEN);
+
+    private final AtomicLongArray buckets;
+
+    private final int mask;
+
+    private final long capacity;
+
+    private final long periodMillis;
+
+    private final long epochMillis = System.currentTimeMillis() - 1;
+
+    /**
+     * @param stripes number of buckets, rounded up to a power of two
+     * @param capacity tokens in a full bucket, at most {@link #MAX_CAPACITY}
+     * @param periodMillis time to refill an empty bucket
+     */
+    public TokenBucketLimiter(int stripes, int capacity, long periodMillis) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        if (periodMillis < 1) {
+            throw new IllegalArgumentException("Invalid period " + periodMillis);
+        }
+        int size = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+        this.buckets = new AtomicLongArray(Math.max(size, 1));
+        this.mask = this.buckets.length() - 1;
+        this.capacity = capacity * ONE_TOKEN;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Takes a token from the bucket of key.
+     *
+     * @param key key to limit
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    boolean tryAcquire(String key, long nowMillis) {
+        int index = index(key);
+        long now = nowMillis - this.epochMillis;
+        while (true) {
+            long state = this.buckets.get(index);
+            long tokens;
+            if (state == 0L) {
+                tokens = this.capacity;
+            } else {
+                long last = state >>> TOKEN_BITS;
+                long elapsed = Math.max(now - last, 0L);
+                tokens = state & TOKEN_MASK;
+                if (elapsed > 0) {
+                    tokens = elapsed >= this.periodMillis ? this.capacity
+                            : Math.min(this.capacity, tokens + elapsed * this.capacity / this.periodMillis);
+                }
+            }
+            if (tokens < ONE_TOKEN) {
+                return false;
+            }
+            long updated = (now << TOKEN_BITS) | (tokens - ONE_TOKEN);
+            if (this.buckets.compareAndSet(index, state, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a token taken with {@link #tryAcquire(String)} that was not used.
+     *
+     * @param key key the token was taken for
+     */
+    public void release(String key) {
+        int index = index(key);
+        while (true) {
+            long state = this.buckets.get(index);
+            if (state == 0L || (state & TOKEN_MASK) >= this.capacity) {
+                return;
+            }
+            long tokens = Math.min(this.capacity, (state & TOKEN_MASK) + ONE_TOKEN);
+            if (this.buckets.compareAndSet(index, state, (state & ~TOKEN_MASK) | tokens)) {
+                return;
+            }
+        }
+    }
+
+    private int index(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & this.mask;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+public class DirectGrantDecisionsTest {
+
+    private static final long VALID = Long.MAX_VALUE;
+
+    private final ClientIp ip = new ClientIp("192.0.2.1");
+
+    private final IpAuthenticatorConfig config = IpAuthenticatorConfig.get(null, null);
+
+    @After
+    public void reset() {
+        DirectGrantDecisions.configure(DirectGrantDecisions.DEFAULT_MAX_USERS,
+                DirectGrantDecisions.DEFAULT_TTL_SECONDS);
+    }
+
+    private static DirectGrantDecisions decisions(int maxUsers, long ttlSeconds) {
+        DirectGrantDecisions.configure(maxUsers, ttlSeconds);
+        return DirectGrantDecisions.get();
+    }
+
+    @Test
+    public void returnsCachedDecision() {
+        DirectGrantDecisions decisions = decisions(10, 60);
+        decisions.put("realm", "user", "client", this.ip, this.config, ConditionalActionMode.ATTEMPTED, VALID);
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config),
+                is(ConditionalActionMode.ATTEMPTED));
+        assertThat(decisions.get("realm", "user", "other", this.ip, this.config), is(nullValue()));
+        assertThat(decisions.get("realm", "user", "client", new ClientIp("192.0.2.2"), this.config), is(nullValue()));
+    }
+
+    @Test
+    public void invalidateDropsDecisionsOfUserOnly() {
+        DirectGrantDecisions decisions = decisions(10, 60);
+        decisions.put("realm", "user", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+        decisions.put("realm", "user", "other", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+        decisions.put("realm", "another", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+
+        decisions.invalidate("realm", "user");
+
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config), is(nullValue()));
+        assertThat(decisions.get("realm", "user", "other", this.ip, this.config), is(nullValue()));
+        assertThat(decisions.get("realm", "another", "client", this.ip, this.config),
+                is(ConditionalActionMode.SKIP));
+    }
+
+    @Test
+    public void invalidateIsScopedToRealm() {
+        DirectGrantDecisions decisions = decisions(10, 60);
+        decisions.put("realm", "user", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+
+        decisions.invalidate("other", "user");
+
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config), is(ConditionalActionMode.SKIP));
+    }
+
+    @Test
+    public void ignoresDecisionOfOtherConfig() {
+        DirectGrantDecisions decisions = decisions(10, 60);
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId("config");
+        model.setConfig(Collections.singletonMap(IpAuthorizeConstants.IP_AUTHORIZE_MAX_ENTRIES, "5"));
+        decisions.put("realm", "user", "client", this.ip, IpAuthenticatorConfig.get(null, model),
+                ConditionalActionMode.SKIP, VALID);
+
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config), is(nullValue()));
+    }
+
+    @Test
+    public void ignoresExpiredDecision() {
+        DirectGrantDecisions decisions = decisions(10, 60);
+        decisions.put("realm", "user", "client", this.ip, this.config, ConditionalActionMode.SKIP,
+                VerifiedIpAddresses.currentTimeSeconds() - 1);
+
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config), is(nullValue()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedUser() {
+        DirectGrantDecisions decisions = decisions(2, 60);
+        decisions.put("realm", "first", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+        decisions.put("realm", "second", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+        decisions.get("realm", "first", "client", this.ip, this.config);
+        decisions.put("realm", "third", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+
+        assertThat(decisions.get("realm", "first", "client", this.ip, this.config), is(ConditionalActionMode.SKIP));
+        assertThat(decisions.get("realm", "second", "client", this.ip, this.config), is(nullValue()));
+    }
+
+    @Test
+    public void doesNotCacheWithoutTtl() {
+        DirectGrantDecisions decisions = decisions(10, 0);
+        decisions.put("realm", "user", "client", this.ip, this.config, ConditionalActionMode.SKIP, VALID);
+
+        assertThat(decisions.get("realm", "user", "client", this.ip, this.config), is(nullValue()));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DirectGrantFailuresTest {
+
+    private static final String PROXY = "198.51.100.1";
+
+    @After
+    public void reset() {
+        DirectGrantFailures.configure(DirectGrantFailures.DEFAULT_THRESHOLD,
+                DirectGrantFailures.DEFAULT_HALF_LIFE_SECONDS, DirectGrantFailures.DEFAULT_STRIPES);
+    }
+
+    private static DirectGrantFailures failures(int threshold) {
+        DirectGrantFailures.configure(threshold, 3600, 64);
+        return DirectGrantFailures.get();
+    }
+
+    @Test
+    public void blocksAddressAtThreshold() {
+        DirectGrantFailures failures = failures(2);
+        ClientIp ip = new ClientIp("192.0.2.1");
+        failures.failed(ip);
+        assertThat(failures.isBlocked(ip), is(false));
+        failures.failed(ip);
+        assertThat(failures.isBlocked(ip), is(true));
+        assertThat(failures.isBlocked(new ClientIp("192.0.2.2")), is(false));
+    }
+
+    @Test
+    public void countsClientSuppliedAddressesAgainstRemoteAddress() {
+        DirectGrantFailures failures = failures(2);
+        failures.failed(new ClientIp("192.0.2.1", PROXY, true));
+        failures.failed(new ClientIp("192.0.2.2", PROXY, true));
+        assertThat(failures.isBlocked(new ClientIp("192.0.2.3", PROXY, true)), is(true));
+        assertThat(failures.isBlocked(new ClientIp("192.0.2.3", PROXY, false)), is(false));
+    }
+
+    @Test
+    public void countsTrustedAddressesSeparately() {
+        DirectGrantFailures failures = failures(2);
+        failures.failed(new ClientIp("192.0.2.1", PROXY, false));
+        failures.failed(new ClientIp("192.0.2.2", PROXY, false));
+        assertThat(failures.isBlocked(new ClientIp("192.0.2.1", PROXY, false)), is(false));
+        assertThat(failures.isBlocked(new ClientIp(PROXY)), is(false));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IpAuthorizationEntryTest {
+
+    private static long isoEpochSecond(String text) {
+        return ZonedDateTime.parse(text, IpAuthorizationEntry.FORMATTER).toEpochSecond();
+    }
+
+    @Test
+    public void parsesEpochSecondFormat() {
+        IpAuthorizationEntry entry = IpAuthorizationEntry.parse("192.0.2.1;1700000000");
+        assertThat(entry.getIpAddress(), is("192.0.2.1"));
+        assertThat(entry.getValidUntilEpochSecond(), is(1700000000L));
+        assertThat(entry.getLastMatchedEpochSecond(), is(0L));
+        assertThat(entry.format(), is("192.0.2.1;1700000000"));
+        assertThat(IpAuthorizationEntry.isCurrentFormat("192.0.2.1;1700000000"), is(true));
+    }
+
+    @Test
+    public void parsesLastMatchedTime() {
+        IpAuthorizationEntry entry = IpAuthorizationEntry.parse("2001:db8::/64;1700000000;1690000000");
+        assertThat(entry.getIpAddress(), is("2001:db8::/64"));
+        assertThat(entry.getValidUntilEpochSecond(), is(1700000000L));
+        assertThat(entry.getLastMatchedEpochSecond(), is(1690000000L));
+        assertThat(entry.format(), is("2001:db8::/64;1700000000;1690000000"));
+        assertThat(IpAuthorizationEntry.isCurrentFormat("2001:db8::/64;1700000000;1690000000"), is(true));
+    }
+
+    @Test
+    public void parsesLegacyIsoFormat() {
+        IpAuthorizationEntry entry = IpAuthorizationEntry.parse("192.0.2.1;2017-06-30T12:34:56");
+        assertThat(entry.getValidUntilEpochSecond(), is(isoEpochSecond("2017-06-30T12:34:56")));
+        assertThat(entry.getValidUntil(),
+                is(ZonedDateTime.parse("2017-06-30T12:34:56", IpAuthorizationEntry.FORMATTER)));
+        assertThat(entry.format(), is("192.0.2.1;" + isoEpochSecond("2017-06-30T12:34:56")));
+        assertThat(IpAuthorizationEntry.isCurrentFormat("192.0.2.1;2017-06-30T12:34:56"), is(false));
+    }
+
+    @Test
+    public void parsesLegacyIsoFormatLikeDateTimeFormatter() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            long epochSecond = (long) (random.nextDouble() * 4102444800L);
+            String iso = IpAuthorizationEntry.FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+            assertThat(iso, IpAuthorizationEntry.parse("10.0.0.1;" + iso).getValidUntilEpochSecond(),
+                    is(epochSecond));
+        }
+        assertThat(IpAuthorizationEntry.parse("10.0.0.1;2020-02-29T23:59:59").getValidUntilEpochSecond(),
+                is(isoEpochSecond("2020-02-29T23:59:59")));
+        assertThat(IpAuthorizationEntry.parse("10.0.0.1;2000-02-29T00:00:00").getValidUntilEpochSecond(),
+                is(isoEpochSecond("2000-02-29T00:00:00")));
+    }
+
+    @Test
+    public void parsesLegacyEntryWithoutExpiryAsExpired() {
+        IpAuthorizationEntry entry = IpAuthorizationEntry.parse("192.0.2.1");
+        assertThat(entry.getIpAddress(), is("192.0.2.1"));
+        assertThat(entry.getValidUntilEpochSecond(), is(0L));
+        assertThat(entry.isNonExpired(), is(false));
+        assertThat(IpAuthorizationEntry.isCurrentFormat("192.0.2.1"), is(false));
+    }
+
+    @Test
+    public void rejectsInvalidExpiry() {
+        for (String text : new String[] { "10.0.0.1;", "10.0.0.1;abc", "10.0.0.1;2019-02-29T00:00:00",
+                "10.0.0.1;2017-13-01T00:00:00", "10.0.0.1;2017-06-31T00:00:00", "10.0.0.1;2017-06-30T24:00:00",
+                "10.0.0.1;2017-06-30 12:34:56", "10.0.0.1;2017-06-30T12:34", "10.0.0.1;1969-12-31T23:59:59",
+                "10.0.0.1;1700000000;", "10.0.0.1;1700000000;x", "10.0.0.1;x;1690000000",
+                "10.0.0.1;1234567890123456789" }) {
+            try {
+                IpAuthorizationEntry.parse(text);
+                fail("Parsed " + text);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertThat(text, IpAuthorizationEntry.isCurrentFormat(text), is(false));
+        }
+    }
+
+    @Test
+    public void authorizesMatchingNonExpiredEntry() {
+        long future = VerifiedIpAddresses.currentTimeSeconds() + 3600;
+        IpAuthorizationEntry entry = IpAuthorizationEntry.parse("192.0.2.0/24;" + future);
+        assertThat(entry.authorize("192.0.2.99"), is(true));
+        assertThat(entry.authorize("192.0.3.1"), is(false));
+        entry.setValidUntilEpochSecond(VerifiedIpAddresses.currentTimeSeconds() - 1);
+        assertThat(entry.authorize("192.0.2.99"), is(false));
+        assertThat(entry.matches("192.0.2.99"), is(true));
+    }
+}
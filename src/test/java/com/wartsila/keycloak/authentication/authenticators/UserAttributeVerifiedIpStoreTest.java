@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class UserAttributeVerifiedIpStoreTest {
+
+    private static final long EXPIRY = 1800000000L;
+
+    private static String entry(String ip, long lastMatched) {
+        return ip + ";" + EXPIRY + ";" + lastMatched;
+    }
+
+    @Test
+    public void evictsLeastRecentlyMatchedEntries() {
+        assertThat(UserAttributeVerifiedIpStore.evict(Arrays.asList(entry("10.0.0.1", 300), entry("10.0.0.2", 100),
+                entry("10.0.0.3", 200), entry("10.0.0.4", 400)), 2, "10.0.0.4"),
+                contains(entry("10.0.0.1", 300), entry("10.0.0.4", 400)));
+    }
+
+    @Test
+    public void neverEvictsKeptEntry() {
+        assertThat(UserAttributeVerifiedIpStore.evict(Arrays.asList(entry("10.0.0.1", 300), entry("10.0.0.2", 200),
+                entry("10.0.0.3", 100)), 1, "10.0.0.3"), contains(entry("10.0.0.3", 100)));
+    }
+
+    @Test
+    public void evictsNeverMatchedEntriesFirstByExpiry() {
+        assertThat(UserAttributeVerifiedIpStore.evict(Arrays.asList("10.0.0.1;" + (EXPIRY + 1),
+                "10.0.0.2;" + EXPIRY, entry("10.0.0.3", 100), entry("10.0.0.4", 400)), 3, "10.0.0.4"),
+                contains("10.0.0.1;" + (EXPIRY + 1), entry("10.0.0.3", 100), entry("10.0.0.4", 400)));
+    }
+
+    @Test
+    public void dropsInvalidEntries() {
+        assertThat(UserAttributeVerifiedIpStore.evict(Arrays.asList("10.0.0.1;garbage", entry("10.0.0.2", 100),
+                entry("10.0.0.3", 200), entry("10.0.0.4", 300)), 3, "10.0.0.4"),
+                contains(entry("10.0.0.2", 100), entry("10.0.0.3", 200), entry("10.0.0.4", 300)));
+    }
+}
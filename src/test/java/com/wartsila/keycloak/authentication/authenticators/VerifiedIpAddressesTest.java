@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.authentication.authenticators;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.wartsila.support.IpAddress;
+
+public class VerifiedIpAddressesTest {
+
+    private static final long NOW = 1700000000L;
+
+    @Test
+    public void dropsEntriesExpiredBeforeCutoff() {
+        assertThat(VerifiedIpAddresses.prune(Arrays.asList("10.0.0.1;" + (NOW - 1), "10.0.0.2;" + NOW,
+                "10.0.0.3;" + (NOW + 1)), NOW), contains("10.0.0.3;" + (NOW + 1)));
+    }
+
+    @Test
+    public void dropsLegacyEntriesWithoutExpiry() {
+        assertThat(VerifiedIpAddresses.prune(Collections.singletonList("10.0.0.1"), NOW), is(empty()));
+    }
+
+    @Test
+    public void collapsesEntriesOfSameAddress() {
+        assertThat(VerifiedIpAddresses.prune(Arrays.asList(
+                "10.0.0.1;" + (NOW + 10) + ";" + (NOW - 5),
+                "10.0.0.2;" + (NOW + 10),
+                "10.0.0.1;" + (NOW + 20),
+                "10.0.0.1;" + (NOW + 15) + ";" + (NOW - 1)), NOW),
+                contains("10.0.0.1;" + (NOW + 20) + ";" + (NOW - 1), "10.0.0.2;" + (NOW + 10)));
+    }
+
+    @Test
+    public void rewritesLegacyIsoEntries() {
+        String iso = "2030-01-01T00:00:00";
+        long expiry = ZonedDateTime.parse(iso, IpAuthorizationEntry.FORMATTER).toEpochSecond();
+        assertThat(VerifiedIpAddresses.prune(Collections.singletonList("10.0.0.1;" + iso), NOW),
+                contains("10.0.0.1;" + expiry));
+    }
+
+    @Test
+    public void keepsInvalidEntriesLast() {
+        assertThat(VerifiedIpAddresses.prune(Arrays.asList("10.0.0.1;garbage", "10.0.0.2;" + (NOW + 1)), NOW),
+                contains("10.0.0.2;" + (NOW + 1), "10.0.0.1;garbage"));
+    }
+
+    @Test
+    public void compilesOnlyValidEntries() {
+        long now = VerifiedIpAddresses.currentTimeSeconds();
+        VerifiedIpSet set = VerifiedIpAddresses.compile(Arrays.asList("10.0.0.0/24;" + (now + 60),
+                "10.0.1.1;" + (now - 60), "10.0.2.1;garbage", "not an address;" + (now + 60)));
+        assertThat(set.size(), is(1));
+        assertThat(set.contains(IpAddress.parse("10.0.0.5"), now), is(true));
+        assertThat(set.contains(IpAddress.parse("10.0.1.1"), now), is(false));
+        assertThat(set.contains(IpAddress.parse("10.0.2.1"), now), is(false));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EmailOutboxTest {
+
+    private static final long SIZE = 4096L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EmailMessage message(String subject) {
+        return new EmailMessage("realm", "user", subject, "text", null);
+    }
+
+    private static List<String> subjects(List<EmailOutbox.Entry> entries) {
+        return entries.stream().map(entry -> entry.getMessage().getSubject()).collect(Collectors.toList());
+    }
+
+    private Path file() {
+        return this.folder.getRoot().toPath().resolve("outbox").resolve("email-outbox.dat");
+    }
+
+    @Test
+    public void recoversPendingMessages() throws IOException {
+        EmailOutbox outbox = new EmailOutbox(file(), SIZE);
+        assertThat(outbox.recover(), is(empty()));
+        long first = outbox.append(message("first"));
+        outbox.append(message("second"));
+        outbox.append(message("third"));
+        outbox.complete(first);
+        outbox.flush();
+
+        EmailOutbox reopened = new EmailOutbox(file(), SIZE);
+        List<EmailOutbox.Entry> recovered = reopened.recover();
+        assertThat(subjects(recovered), contains("second", "third"));
+        assertThat(recovered.get(0).getMessage().getHtmlBody(), is((String) null));
+        assertThat(reopened.getPendingCount(), is(2));
+    }
+
+    @Test
+    public void wrapsAroundBehindPendingMessage() throws IOException {
+        EmailOutbox outbox = new EmailOutbox(file(), SIZE);
+        outbox.recover();
+        outbox.append(message("stuck"));
+        for (int i = 0; i < 1000; i++) {
+            outbox.complete(outbox.append(message("message " + i)));
+        }
+        outbox.append(message("last"));
+        outbox.flush();
+
+        assertThat(outbox.getPendingCount(), is(2));
+        assertThat(subjects(new EmailOutbox(file(), SIZE).recover()), contains("stuck", "last"));
+    }
+
+    @Test
+    public void continuesAfterRecoveryWithWrappedRecords() throws IOException {
+        EmailOutbox outbox = new EmailOutbox(file(), SIZE);
+        outbox.recover();
+        outbox.append(message("stuck"));
+        for (int i = 0; i < 100; i++) {
+            outbox.complete(outbox.append(message("message " + i)));
+        }
+        outbox.append(message("pending"));
+        outbox.flush();
+
+        EmailOutbox reopened = new EmailOutbox(file(), SIZE);
+        List<EmailOutbox.Entry> recovered = reopened.recover();
+        assertThat(subjects(recovered), contains("stuck", "pending"));
+        reopened.complete(recovered.get(0).getId());
+        for (int i = 0; i < 100; i++) {
+            reopened.complete(reopened.append(message("again " + i)));
+        }
+        reopened.flush();
+
+        assertThat(subjects(new EmailOutbox(file(), SIZE).recover()), contains("pending"));
+    }
+
+    @Test
+    public void rejectsAppendWhenFull() throws IOException {
+        EmailOutbox outbox = new EmailOutbox(file(), SIZE);
+        outbox.recover();
+        int appended = 0;
+        try {
+            while (appended < 1000) {
+                outbox.append(message("message " + appended));
+                appended++;
+            }
+            fail("Outbox should be full");
+        } catch (IOException e) {
+            assertThat(outbox.getPendingCount(), is(appended));
+        }
+        outbox.flush();
+        assertThat(new EmailOutbox(file(), SIZE).recover().size(), is(appended));
+    }
+
+    @Test
+    public void dropsExpiredMessagesOnRecovery() throws IOException {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        EmailOutbox outbox = new EmailOutbox(file(), SIZE);
+        outbox.recover();
+        outbox.append(message("expired").withExpiresAt(now - 1));
+        outbox.append(message("valid").withExpiresAt(now + 3600));
+        outbox.append(message("never"));
+        outbox.flush();
+
+        EmailOutbox reopened = new EmailOutbox(file(), SIZE);
+        assertThat(subjects(reopened.recover()), contains("valid", "never"));
+        assertThat(reopened.getPendingCount(), is(2));
+    }
+
+    @Test
+    public void createsFileReadableByOwnerOnly() throws IOException {
+        Assume.assumeTrue(this.folder.getRoot().toPath().getFileSystem().supportedFileAttributeViews()
+                .contains("posix"));
+        new EmailOutbox(file(), SIZE);
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file())), is("rw-------"));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file().getParent())),
+                is("rwx------"));
+    }
+}
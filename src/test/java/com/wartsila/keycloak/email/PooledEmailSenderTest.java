@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PooledEmailSenderTest {
+
+    private static final String REALM_ID = "realm";
+
+    private TestSmtpServer server;
+
+    private Map<String, String> smtpConfig;
+
+    private PooledEmailSender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new TestSmtpServer();
+        this.smtpConfig = new HashMap<>();
+        this.smtpConfig.put("host", "localhost");
+        this.smtpConfig.put("port", String.valueOf(this.server.getPort()));
+        this.smtpConfig.put("from", "noreply@example.com");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.sender != null) {
+            this.sender.close();
+        }
+        this.server.close();
+    }
+
+    private void send() throws Exception {
+        this.sender.send(null, REALM_ID, this.smtpConfig,
+                new EmailMessage(REALM_ID, "user", "Subject", "Text", "<p>Html</p>"), "user@example.com");
+    }
+
+    @Test
+    public void reusesConnection() throws Exception {
+        this.sender = new PooledEmailSender(2, 30000L);
+        send();
+        send();
+        send();
+        assertThat(this.server.getMessageCount(), is(3));
+        assertThat(this.server.getConnectionCount(), is(1));
+    }
+
+    @Test
+    public void replacesConnectionDroppedByServer() throws Exception {
+        this.sender = new PooledEmailSender(2, 30000L);
+        send();
+        this.server.dropConnections();
+        assertTrue(this.server.awaitDisconnections(1, 5000L));
+        send();
+        assertThat(this.server.getMessageCount(), is(2));
+        assertThat(this.server.getConnectionCount(), is(2));
+    }
+
+    @Test
+    public void closesIdleConnection() throws Exception {
+        this.sender = new PooledEmailSender(2, 50L);
+        send();
+        Thread.sleep(150L);
+        send();
+        assertThat(this.server.getMessageCount(), is(2));
+        assertThat(this.server.getConnectionCount(), is(2));
+        assertTrue(this.server.awaitDisconnections(1, 5000L));
+    }
+
+    @Test
+    public void replacesPoolWhenConfigurationChanges() throws Exception {
+        this.sender = new PooledEmailSender(2, 30000L);
+        send();
+        this.smtpConfig.put("from", "other@example.com");
+        send();
+        assertThat(this.server.getConnectionCount(), is(2));
+        assertThat(this.sender.getPoolCount(), is(1));
+        assertTrue(this.server.awaitDisconnections(1, 5000L));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.keycloak.email;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process SMTP server for tests. Accepts every message and counts connections and messages.
+ */
+final class TestSmtpServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+
+    private final Thread acceptor;
+
+    private final List<Socket> clients = new ArrayList<>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger disconnections = new AtomicInteger();
+
+    private final AtomicInteger messages = new AtomicInteger();
+
+    TestSmtpServer() throws IOException {
+        this.serverSocket = new ServerSocket(0);
+        this.acceptor = new Thread(this::accept, "test-smtp-server");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return this.connections.get();
+    }
+
+    int getMessageCount() {
+        return this.messages.get();
+    }
+
+    /**
+     * Waits until at least count connections have been closed.
+     */
+    boolean awaitDisconnections(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.disconnections.get() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Drops all open connections without a reply, as a relay restart would.
+     */
+    void dropConnections() throws IOException {
+        synchronized (this.clients) {
+            for (Socket client : this.clients) {
+                client.close();
+            }
+            this.clients.clear();
+        }
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket client = this.serverSocket.accept();
+                synchronized (this.clients) {
+                    this.clients.add(client);
+                }
+                this.connections.incrementAndGet();
+                Thread handler = new Thread(() -> handle(client), "test-smtp-client");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try (Socket socket = client;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = socket.getOutputStream()) {
+            reply(out, "220 localhost test");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                switch (command) {
+                case "EHLO":
+                case "HELO":
+                    reply(out, "250 localhost");
+                    break;
+                case "DATA":
+                    reply(out, "354 end with .");
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        // Discard message content
+                    }
+                    this.messages.incrementAndGet();
+                    reply(out, "250 OK");
+                    break;
+                case "QUIT":
+                    reply(out, "221 bye");
+                    return;
+                default:
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // Connection dropped
+        } finally {
+            synchronized (this.clients) {
+                this.clients.remove(client);
+            }
+            this.disconnections.incrementAndGet();
+        }
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+        dropConnections();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class DecayingCountersTest {
+
+    private static final long HALF_LIFE = 60000L;
+
+    @Test
+    public void countsPerKey() {
+        DecayingCounters counters = new DecayingCounters(1024, HALF_LIFE);
+        long now = System.currentTimeMillis();
+        assertThat(counters.get("192.0.2.1", now), is(0L));
+        assertThat(counters.increment("192.0.2.1", now), is(1L));
+        assertThat(counters.increment("192.0.2.1", now), is(2L));
+        assertThat(counters.increment("192.0.2.2", now), is(1L));
+        assertThat(counters.get("192.0.2.1", now), is(2L));
+        assertThat(counters.get("192.0.2.3", now), is(0L));
+    }
+
+    @Test
+    public void halvesEveryHalfLife() {
+        DecayingCounters counters = new DecayingCounters(1024, HALF_LIFE);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 8; i++) {
+            counters.increment("key", now);
+        }
+        assertThat(counters.get("key", now + HALF_LIFE - 1), is(8L));
+        assertThat(counters.get("key", now + HALF_LIFE), is(4L));
+        assertThat(counters.get("key", now + 2 * HALF_LIFE), is(2L));
+        assertThat(counters.get("key", now + 100 * HALF_LIFE), is(0L));
+    }
+
+    @Test
+    public void keepsPartiallyElapsedHalfLife() {
+        DecayingCounters counters = new DecayingCounters(1024, HALF_LIFE);
+        long now = System.currentTimeMillis();
+        counters.increment("key", now);
+        counters.increment("key", now);
+        assertThat(counters.increment("key", now + HALF_LIFE + HALF_LIFE / 2), is(2L));
+        assertThat(counters.get("key", now + 2 * HALF_LIFE), is(1L));
+    }
+
+    @Test
+    public void restartsAfterDecayingToZero() {
+        DecayingCounters counters = new DecayingCounters(1024, HALF_LIFE);
+        long now = System.currentTimeMillis();
+        counters.increment("key", now);
+        long later = now + 10 * HALF_LIFE;
+        assertThat(counters.increment("key", later), is(1L));
+        assertThat(counters.get("key", later + HALF_LIFE - 1), is(1L));
+    }
+
+    @Test
+    public void keysSharingBucketsInBothRowsShareCount() {
+        DecayingCounters counters = new DecayingCounters(1, HALF_LIFE);
+        long now = System.currentTimeMillis();
+        counters.increment("first", now);
+        assertThat(counters.get("second", now), is(1L));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ForwardedHeadersTest {
+
+    private static IpPrefixSet proxies(String... ranges) {
+        IpPrefixSet proxies = new IpPrefixSet();
+        for (String range : ranges) {
+            proxies.add(range, IpPrefixSet.NEVER_EXPIRES);
+        }
+        return proxies;
+    }
+
+    private final IpPrefixSet trusted = proxies("10.0.0.0/8", "2001:db8:ffff::/48");
+
+    @Test
+    public void returnsNullWithoutHops() {
+        assertThat(ForwardedHeaders.clientFromXForwardedFor(null, this.trusted), is(nullValue()));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("", this.trusted), is(nullValue()));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor(" , ,", this.trusted), is(nullValue()));
+        assertThat(ForwardedHeaders.clientFromForwarded(null, this.trusted), is(nullValue()));
+        assertThat(ForwardedHeaders.clientFromForwarded("proto=https;by=10.0.0.1", this.trusted), is(nullValue()));
+    }
+
+    @Test
+    public void returnsFirstUntrustedHopFromRight() {
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("203.0.113.1, 10.0.0.1, 10.0.0.2", this.trusted),
+                is("203.0.113.1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("192.0.2.66, 203.0.113.1, 10.0.0.2", this.trusted),
+                is("203.0.113.1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("203.0.113.1,,10.0.0.1,", this.trusted),
+                is("203.0.113.1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("2001:db8::1, 2001:db8:ffff::2", this.trusted),
+                is("2001:db8::1"));
+    }
+
+    @Test
+    public void returnsLeftMostHopWhenAllAreTrusted() {
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("10.0.0.1, 10.0.0.2", this.trusted), is("10.0.0.1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("203.0.113.1", new IpPrefixSet()), is("203.0.113.1"));
+    }
+
+    @Test
+    public void stripsPortsAndBrackets() {
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("203.0.113.1:4711, 10.0.0.1:80", this.trusted),
+                is("203.0.113.1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("[2001:db8::1]:4711, [10.0.0.1]", this.trusted),
+                is("2001:db8::1"));
+        assertThat(ForwardedHeaders.clientFromXForwardedFor(" 2001:db8::1 ", this.trusted), is("2001:db8::1"));
+    }
+
+    @Test
+    public void neverTrustsNonLiteralHops() {
+        assertThat(ForwardedHeaders.clientFromXForwardedFor("203.0.113.1, unknown, 10.0.0.1", this.trusted),
+                is("unknown"));
+        assertThat(ForwardedHeaders.clientFromForwarded("for=192.0.2.1, for=_hidden, for=10.0.0.1", this.trusted),
+                is("_hidden"));
+    }
+
+    @Test
+    public void readsForParameterOfForwarded() {
+        assertThat(ForwardedHeaders.clientFromForwarded("for=192.0.2.60;proto=http;by=203.0.113.43", this.trusted),
+                is("192.0.2.60"));
+        assertThat(ForwardedHeaders.clientFromForwarded("proto=https; For=\"192.0.2.60:8080\"", this.trusted),
+                is("192.0.2.60"));
+        assertThat(ForwardedHeaders.clientFromForwarded("for=\"[2001:db8:cafe::17]:4711\"", this.trusted),
+                is("2001:db8:cafe::17"));
+    }
+
+    @Test
+    public void walksForwardedElementsFromRight() {
+        assertThat(ForwardedHeaders.clientFromForwarded("for=192.0.2.43, for=198.51.100.17;by=10.0.0.1, for=10.0.0.2",
+                this.trusted), is("198.51.100.17"));
+        assertThat(ForwardedHeaders.clientFromForwarded("for=192.0.2.43, proto=https, for=10.0.0.2", this.trusted),
+                is("192.0.2.43"));
+        assertThat(ForwardedHeaders.clientFromForwarded("for=10.0.0.1, for=10.0.0.2", this.trusted),
+                is("10.0.0.1"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class IpAddressMatcherTest {
+
+    @Test
+    public void matchesIpv4Range() {
+        IpAddressMatcher matcher = new IpAddressMatcher("192.168.1.0/24");
+        assertThat(matcher.matches("192.168.1.0"), is(true));
+        assertThat(matcher.matches("192.168.1.255"), is(true));
+        assertThat(matcher.matches("192.168.2.1"), is(false));
+        assertThat(matcher.matches("2001:db8::1"), is(false));
+        assertThat(matcher.getMaskBits(), is(24));
+    }
+
+    @Test
+    public void matchesSingleIpv4Address() {
+        IpAddressMatcher matcher = new IpAddressMatcher("10.0.0.1");
+        assertThat(matcher.matches("10.0.0.1"), is(true));
+        assertThat(matcher.matches("10.0.0.2"), is(false));
+        assertThat(matcher.getMaskBits(), is(-1));
+    }
+
+    @Test
+    public void matchesAllWithZeroPrefix() {
+        assertThat(new IpAddressMatcher("0.0.0.0/0").matches("203.0.113.9"), is(true));
+        assertThat(new IpAddressMatcher("0.0.0.0/0").matches("::1"), is(false));
+        assertThat(new IpAddressMatcher("::/0").matches("2001:db8::1"), is(true));
+        assertThat(new IpAddressMatcher("::/0").matches("203.0.113.9"), is(false));
+    }
+
+    @Test
+    public void ignoresHostBitsOfNetwork() {
+        assertThat(new IpAddressMatcher("10.1.2.3/8").matches("10.200.0.1"), is(true));
+        assertThat(new IpAddressMatcher("2001:db8::1/32").matches("2001:db8:ffff::"), is(true));
+    }
+
+    @Test
+    public void matchesIpv6RangesAroundWordBoundary() {
+        IpAddressMatcher matcher32 = new IpAddressMatcher("2001:db8::/32");
+        assertThat(matcher32.isIpv6(), is(true));
+        assertThat(matcher32.matches("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"), is(true));
+        assertThat(matcher32.matches("2001:db9::"), is(false));
+
+        IpAddressMatcher matcher64 = new IpAddressMatcher("2001:db8:1:2::/64");
+        assertThat(matcher64.matches("2001:db8:1:2:ffff::1"), is(true));
+        assertThat(matcher64.matches("2001:db8:1:3::1"), is(false));
+
+        IpAddressMatcher matcher65 = new IpAddressMatcher("2001:db8:1:2:8000::/65");
+        assertThat(matcher65.matches("2001:db8:1:2:ffff::1"), is(true));
+        assertThat(matcher65.matches("2001:db8:1:2:7fff::1"), is(false));
+
+        IpAddressMatcher matcher128 = new IpAddressMatcher("2001:db8::1/128");
+        assertThat(matcher128.matches("2001:db8::1"), is(true));
+        assertThat(matcher128.matches("2001:db8::2"), is(false));
+    }
+
+    @Test
+    public void matchesMappedIpv4AsIpv4() {
+        assertThat(new IpAddressMatcher("10.0.0.0/8").matches("::ffff:10.1.2.3"), is(true));
+        assertThat(new IpAddressMatcher("::ffff:10.0.0.0/8").matches("10.1.2.3"), is(true));
+    }
+
+    @Test
+    public void matchesParsedAddress() {
+        IpAddressMatcher matcher = new IpAddressMatcher("172.16.0.0/12");
+        assertThat(matcher.matches(IpAddress.parse("172.31.255.255")), is(true));
+        assertThat(matcher.matches(IpAddress.parse("172.32.0.0")), is(false));
+    }
+
+    @Test
+    public void rejectsInvalidRanges() {
+        for (String range : new String[] { "10.0.0.0/33", "2001:db8::/129", "10.0.0.0/", "10.0.0.0/a",
+                "10.0.0.0/0008", "/8", "host.example.com", "10.0.0.256/8" }) {
+            try {
+                new IpAddressMatcher(range);
+                fail("Accepted " + range);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidAddressToMatch() {
+        new IpAddressMatcher("10.0.0.0/8").matches("10.0.0");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class IpAddressParserTest {
+
+    private static final String[] INVALID = { "", " ", "1", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1.2.3.-4", "1..2.3",
+            "1.2.3.4.", ".1.2.3.4", "a.b.c.d", "1.2. 3.4", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1:::2", "1::2::3",
+            ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:", "12345::", "g::", "[::1]", "fe80::1%eth0", "::ffff:1.2.3",
+            "::ffff:1.2.3.256", "1.2.3.4::", "1:2:3:4:5:6:7:1.2.3.4", "localhost", "example.com" };
+
+    private static void assertSameAsInetAddress(String text) throws UnknownHostException {
+        assertThat(text, IpAddress.parse(text).toString(),
+                is(InetAddress.getByName(text).getHostAddress().replaceAll("(^|:)0+(?=[0-9a-f])", "$1")));
+    }
+
+    @Test
+    public void parsesIpv4() throws UnknownHostException {
+        IpAddress address = IpAddress.parse("192.0.2.1");
+        assertThat(address.isIpv6(), is(false));
+        assertThat(address.toIpv4(), is(0xc0000201));
+        assertThat(IpAddressParser.parseIpv4("255.255.255.255", 0, 15), is(0xffffffffL));
+        assertThat(IpAddressParser.parseIpv4("x0.0.0.0x", 1, 8), is(0L));
+        assertSameAsInetAddress("10.20.30.40");
+    }
+
+    @Test
+    public void parsesFullAndCompressedIpv6() throws UnknownHostException {
+        IpAddress address = IpAddress.parse("2001:db8::1");
+        assertThat(address.isIpv6(), is(true));
+        assertThat(address.getHigh(), is(0x20010db800000000L));
+        assertThat(address.getLow(), is(1L));
+        assertThat(IpAddress.parse("2001:0DB8:0000:0000:0000:0000:0000:0001"), is(address));
+        assertThat(IpAddress.parse("::"), is(IpAddress.ipv6(0L, 0L)));
+        assertThat(IpAddress.parse("::1"), is(IpAddress.ipv6(0L, 1L)));
+        assertThat(IpAddress.parse("1::"), is(IpAddress.ipv6(0x0001000000000000L, 0L)));
+        assertThat(IpAddress.parse("1:2:3:4:5:6:7::"), is(IpAddress.parse("1:2:3:4:5:6:7:0")));
+        assertThat(IpAddress.parse("::2:3:4:5:6:7:8"), is(IpAddress.parse("0:2:3:4:5:6:7:8")));
+        assertSameAsInetAddress("fe80::abcd:12:0:1");
+        assertSameAsInetAddress("1:2:3:4:5:6:7:8");
+    }
+
+    @Test
+    public void parsesEmbeddedIpv4() {
+        assertThat(IpAddress.parse("64:ff9b::192.0.2.1"), is(IpAddress.parse("64:ff9b::c000:201")));
+        assertThat(IpAddress.parse("1:2:3:4:5:6:192.0.2.1"), is(IpAddress.parse("1:2:3:4:5:6:c000:201")));
+    }
+
+    @Test
+    public void returnsMappedIpv4AsIpv4() {
+        IpAddress address = IpAddress.parse("::ffff:192.0.2.1");
+        assertThat(address.isIpv6(), is(false));
+        assertThat(address, is(IpAddress.parse("192.0.2.1")));
+        assertThat(IpAddress.parse("::ffff:c000:201"), is(IpAddress.parse("192.0.2.1")));
+    }
+
+    @Test
+    public void rejectsInvalidLiterals() {
+        for (String text : INVALID) {
+            assertThat(text, IpAddress.tryParse(text), is(nullValue()));
+            assertThat(text, IpAddressParser.tryParse(text, 0, text.length()), is(nullValue()));
+        }
+        assertThat(IpAddressParser.parseIpv4("1.2.3.256", 0, 9), is(-1L));
+    }
+
+    @Test
+    public void trimsSurroundingSpaces() {
+        assertThat(IpAddress.parse(" 192.0.2.1 "), is(IpAddress.parse("192.0.2.1")));
+        assertThat(IpAddressParser.tryParse("a, 2001:db8::1", 2, 14), is(IpAddress.parse("2001:db8::1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseThrowsOnInvalidLiteral() {
+        IpAddress.parse("999.0.0.1");
+    }
+}
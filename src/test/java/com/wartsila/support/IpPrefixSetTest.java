@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IpPrefixSetTest {
+
+    private static final long NOW = 1000L;
+
+    private static IpAddress ip(String text) {
+        return IpAddress.parse(text);
+    }
+
+    @Test
+    public void emptySetContainsNothing() {
+        IpPrefixSet set = new IpPrefixSet();
+        assertThat(set.isEmpty(), is(true));
+        assertThat(set.contains(ip("10.0.0.1")), is(false));
+        assertThat(set.find(ip("::1"), NOW), is(IpPrefixSet.NOT_FOUND));
+    }
+
+    @Test
+    public void findsSiblingRangesAfterSplit() {
+        IpPrefixSet set = new IpPrefixSet();
+        set.add("10.0.0.0/24", IpPrefixSet.NEVER_EXPIRES, 1);
+        set.add("10.0.1.0/24", IpPrefixSet.NEVER_EXPIRES, 2);
+        set.add("10.0.2.7", IpPrefixSet.NEVER_EXPIRES, 3);
+
+        assertThat(set.size(), is(3));
+        assertThat(set.find(ip("10.0.0.200"), NOW), is(1));
+        assertThat(set.find(ip("10.0.1.1"), NOW), is(2));
+        assertThat(set.find(ip("10.0.2.7"), NOW), is(3));
+        assertThat(set.find(ip("10.0.2.8"), NOW), is(IpPrefixSet.NOT_FOUND));
+        assertThat(set.find(ip("10.0.3.1"), NOW), is(IpPrefixSet.NOT_FOUND));
+    }
+
+    @Test
+    public void findsWidestValidRangeRegardlessOfInsertOrder() {
+        IpPrefixSet narrowFirst = new IpPrefixSet();
+        narrowFirst.add("192.168.1.0/24", IpPrefixSet.NEVER_EXPIRES, 1);
+        narrowFirst.add("192.168.0.0/16", IpPrefixSet.NEVER_EXPIRES, 2);
+        IpPrefixSet wideFirst = new IpPrefixSet();
+        wideFirst.add("192.168.0.0/16", IpPrefixSet.NEVER_EXPIRES, 2);
+        wideFirst.add("192.168.1.0/24", IpPrefixSet.NEVER_EXPIRES, 1);
+
+        for (IpPrefixSet set : new IpPrefixSet[] { narrowFirst, wideFirst }) {
+            assertThat(set.find(ip("192.168.1.1"), NOW), is(2));
+            assertThat(set.find(ip("192.168.9.1"), NOW), is(2));
+            assertThat(set.find(ip("192.169.0.1"), NOW), is(IpPrefixSet.NOT_FOUND));
+        }
+    }
+
+    @Test
+    public void skipsExpiredRanges() {
+        IpPrefixSet set = new IpPrefixSet();
+        set.add("192.168.0.0/16", NOW, 1);
+        set.add("192.168.1.0/24", NOW + 1, 2);
+
+        assertThat(set.find(ip("192.168.1.1"), NOW), is(2));
+        assertThat(set.find(ip("192.168.2.1"), NOW), is(IpPrefixSet.NOT_FOUND));
+        assertThat(set.find(ip("192.168.2.1"), NOW - 1), is(1));
+        assertThat(set.contains(ip("192.168.2.1")), is(true));
+    }
+
+    @Test
+    public void keepsLatestExpiryOfDuplicateRange() {
+        IpPrefixSet set = new IpPrefixSet();
+        set.add("10.0.0.1", NOW + 10, 1);
+        set.add("10.0.0.1", NOW + 20, 2);
+        set.add("10.0.0.1", NOW + 5, 3);
+
+        assertThat(set.size(), is(1));
+        assertThat(set.find(ip("10.0.0.1"), NOW), is(2));
+        assertThat(set.find(ip("10.0.0.1"), NOW + 15), is(2));
+        assertThat(set.find(ip("10.0.0.1"), NOW + 20), is(IpPrefixSet.NOT_FOUND));
+    }
+
+    @Test
+    public void keepsIpv4AndIpv6Apart() {
+        IpPrefixSet set = new IpPrefixSet();
+        set.add("::/0", IpPrefixSet.NEVER_EXPIRES, 1);
+        assertThat(set.contains(ip("10.0.0.1"), NOW), is(false));
+        assertThat(set.find(ip("2001:db8::1"), NOW), is(1));
+
+        set.add("0.0.0.0/0", IpPrefixSet.NEVER_EXPIRES, 2);
+        assertThat(set.find(ip("10.0.0.1"), NOW), is(2));
+        assertThat(set.find(ip("::ffff:10.0.0.1"), NOW), is(2));
+        assertThat(set.find(ip("::1"), NOW), is(1));
+    }
+
+    @Test
+    public void findsIpv6Ranges() {
+        IpPrefixSet set = new IpPrefixSet();
+        set.add("2001:db8::/32", IpPrefixSet.NEVER_EXPIRES, 1);
+        set.add("2001:db8:1:2::/64", IpPrefixSet.NEVER_EXPIRES, 2);
+        set.add("2001:db9::1", IpPrefixSet.NEVER_EXPIRES, 3);
+
+        assertThat(set.find(ip("2001:db8:1:2::5"), NOW), is(1));
+        assertThat(set.find(ip("2001:db9::1"), NOW), is(3));
+        assertThat(set.find(ip("2001:db9::2"), NOW), is(IpPrefixSet.NOT_FOUND));
+    }
+
+    @Test
+    public void agreesWithLinearScan() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            IpPrefixSet set = new IpPrefixSet();
+            List<IpAddressMatcher> ranges = new ArrayList<>();
+            List<Long> expiries = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                String range = "10.0." + random.nextInt(4) + "." + random.nextInt(256) + "/"
+                        + (16 + random.nextInt(17));
+                long expiresAt = NOW - 50 + random.nextInt(100);
+                IpAddressMatcher matcher = new IpAddressMatcher(range);
+                set.add(matcher, expiresAt, ranges.size());
+                ranges.add(matcher);
+                expiries.add(expiresAt);
+            }
+            for (int i = 0; i < 200; i++) {
+                IpAddress address = ip("10.0." + random.nextInt(5) + "." + random.nextInt(256));
+                boolean expected = false;
+                for (int r = 0; r < ranges.size(); r++) {
+                    expected |= ranges.get(r).matches(address) && expiries.get(r) > NOW;
+                }
+                int found = set.find(address, NOW);
+                assertThat(address.toString(), found != IpPrefixSet.NOT_FOUND, is(expected));
+                if (found != IpPrefixSet.NOT_FOUND) {
+                    assertThat(address.toString(), ranges.get(found).matches(address), is(true));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Wärtsilä
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wartsila.support;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketLimiterTest {
+
+    private static final long PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void rejectsWhenBucketIsEmpty() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1024, 3, PERIOD);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.tryAcquire("user", now), is(true));
+        assertThat(limiter.tryAcquire("user", now), is(true));
+        assertThat(limiter.tryAcquire("user", now), is(true));
+        assertThat(limiter.tryAcquire("user", now), is(false));
+    }
+
+    @Test
+    public void refillsOverPeriod() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1024, 2, PERIOD);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.tryAcquire("user", now), is(true));
+        assertThat(limiter.tryAcquire("user", now), is(true));
+        assertThat(limiter.tryAcquire("user", now + PERIOD / 4), is(false));
+        assertThat(limiter.tryAcquire("user", now + PERIOD / 2), is(true));
+        assertThat(limiter.tryAcquire("user", now + PERIOD / 2), is(false));
+        assertThat(limiter.tryAcquire("user", now + 2 * PERIOD), is(true));
+        assertThat(limiter.tryAcquire("user", now + 2 * PERIOD), is(true));
+        assertThat(limiter.tryAcquire("user", now + 2 * PERIOD), is(false));
+    }
+
+    @Test
+    public void releaseReturnsToken() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1024, 1, PERIOD);
+        assertThat(limiter.tryAcquire("user"), is(true));
+        assertThat(limiter.tryAcquire("user"), is(false));
+        limiter.release("user");
+        assertThat(limiter.tryAcquire("user"), is(true));
+        assertThat(limiter.tryAcquire("user"), is(false));
+    }
+
+    @Test
+    public void releaseDoesNotExceedCapacity() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1024, 1, PERIOD);
+        limiter.release("user");
+        assertThat(limiter.tryAcquire("user"), is(true));
+        limiter.release("user");
+        limiter.release("user");
+        assertThat(limiter.tryAcquire("user"), is(true));
+        assertThat(limiter.tryAcquire("user"), is(false));
+    }
+
+    @Test
+    public void keysInSameBucketShareTokens() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 1, PERIOD);
+        assertThat(limiter.tryAcquire("first"), is(true));
+        assertThat(limiter.tryAcquire("second"), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityAboveMaximum() {
+        new TokenBucketLimiter(1024, TokenBucketLimiter.MAX_CAPACITY + 1, PERIOD);
+    }
+}